@@ -0,0 +1,396 @@
+package com.github.yanxianchao.redapricot.http;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http2.DefaultHttp2DataFrame;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * CONNECT隧道负载测试
+ * 同样数量的隧道分别走HTTP/2 CONNECT（所有隧道复用一条h2c连接）和HTTP/1.1 CONNECT（每条隧道一条TCP连接），
+ * 每条隧道发送固定字节数并等待本地回显服务全部回显，报告隧道建立延迟的p50/p99、每秒完成的隧道数和回显吞吐量。
+ * HTTP/1.1一侧是阻塞式的HttpProxyServer，每条隧道占用两个转发线程，工作线程池只有10个线程，并发超过5时隧道会排队。
+ * 用法：java -cp ... com.github.yanxianchao.redapricot.http.ConnectLoadBenchmark [h2|h1|both] [tunnels] [concurrency] [payloadKb]
+ */
+public final class ConnectLoadBenchmark {
+
+    private static final int CHUNK = 16 * 1024;
+    private static final int STREAM_WINDOW = 256 * 1024;
+    private static final int CONNECTION_WINDOW = 16 * 1024 * 1024;
+    private static final int DEFAULT_WINDOW = 65535;
+
+    private ConnectLoadBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "both";
+        int tunnels = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        int payload = (args.length > 3 ? Integer.parseInt(args[3]) : 256) * 1024;
+
+        EventLoopGroup serverGroup = new NioEventLoopGroup(4);
+        EventLoopGroup clientGroup = new NioEventLoopGroup(4);
+        try {
+            Channel echo = new ServerBootstrap().group(serverGroup)
+                    .channel(NioServerSocketChannel.class)
+                    .option(ChannelOption.SO_BACKLOG, 4096)
+                    .childOption(ChannelOption.TCP_NODELAY, true)
+                    .childHandler(new EchoHandler())
+                    .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+            int echoPort = ((InetSocketAddress) echo.localAddress()).getPort();
+
+            if (!"h1".equals(mode)) {
+                Channel h2Proxy = new ServerBootstrap().group(serverGroup)
+                        .channel(NioServerSocketChannel.class)
+                        .childOption(ChannelOption.TCP_NODELAY, true)
+                        .childHandler(new Http2ProxyInitializer(null, connector(serverGroup)))
+                        .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+                Channel connection = h2Connection(clientGroup, (InetSocketAddress) h2Proxy.localAddress());
+                Http2StreamChannelBootstrap streams = new Http2StreamChannelBootstrap(connection);
+                Opener h2 = (done, payloadBytes) -> streams.open().addListener((Future<Http2StreamChannel> f) -> {
+                    if (!f.isSuccess()) {
+                        done.fail();
+                        return;
+                    }
+                    Http2StreamChannel stream = f.getNow();
+                    stream.pipeline().addLast(new H2ConnectClient(payloadBytes, done));
+                    stream.writeAndFlush(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers()
+                            .method(HttpMethod.CONNECT.asciiName())
+                            .authority("127.0.0.1:" + echoPort)));
+                });
+                run("h2 CONNECT", h2, tunnels / 10, concurrency, payload);
+                run("h2 CONNECT", h2, tunnels, concurrency, payload).print();
+                connection.close().sync();
+                h2Proxy.close().sync();
+            }
+
+            if (!"h2".equals(mode)) {
+                int port = freePort();
+                HttpProxyServer h1Proxy = new HttpProxyServer();
+                h1Proxy.startServer(port);
+                Bootstrap client = new Bootstrap().group(clientGroup)
+                        .channel(NioSocketChannel.class)
+                        .option(ChannelOption.TCP_NODELAY, true);
+                Opener h1 = (done, payloadBytes) -> client.clone()
+                        .handler(new H1ConnectClient(echoPort, payloadBytes, done))
+                        .connect(new InetSocketAddress("127.0.0.1", port))
+                        .addListener((ChannelFuture f) -> {
+                            if (!f.isSuccess()) {
+                                done.fail();
+                            }
+                        });
+                run("h1 CONNECT", h1, tunnels / 10, concurrency, payload);
+                run("h1 CONNECT", h1, tunnels, concurrency, payload).print();
+                // 阻塞式服务器的线程池是静态的，停止后不能再次启动，所以放在最后
+                h1Proxy.stopServer();
+            }
+            echo.close().sync();
+        } finally {
+            clientGroup.shutdownGracefully().sync();
+            serverGroup.shutdownGracefully().sync();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * 与代理服务器相同的上游连接方式：关闭自动读取、允许半关闭，由流处理器在就位后打开读取
+     */
+    private static BiFunction<String, Integer, Future<Channel>> connector(EventLoopGroup group) {
+        Bootstrap upstream = new Bootstrap().group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.AUTO_READ, false)
+                .option(ChannelOption.ALLOW_HALF_CLOSURE, true)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                    }
+                });
+        return (host, port) -> {
+            Promise<Channel> promise = group.next().newPromise();
+            upstream.connect(host, port).addListener((ChannelFuture f) -> {
+                if (f.isSuccess()) {
+                    promise.setSuccess(f.channel());
+                } else {
+                    promise.setFailure(f.cause());
+                }
+            });
+            return promise;
+        };
+    }
+
+    private static Channel h2Connection(EventLoopGroup group, InetSocketAddress proxy) throws InterruptedException {
+        return new Bootstrap().group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        Http2FrameCodec codec = Http2FrameCodecBuilder.forClient()
+                                .initialSettings(Http2Settings.defaultSettings().initialWindowSize(STREAM_WINDOW))
+                                .build();
+                        ch.pipeline().addLast(codec);
+                        ch.pipeline().addLast(new Http2MultiplexHandler(new ChannelInboundHandlerAdapter()));
+                        codec.connection().local().flowController()
+                                .incrementWindowSize(codec.connection().connectionStream(), CONNECTION_WINDOW - DEFAULT_WINDOW);
+                    }
+                })
+                .connect(proxy).sync().channel();
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static Result run(String name, Opener opener, int tunnels, int concurrency, int payload)
+            throws InterruptedException {
+        Semaphore inFlight = new Semaphore(concurrency);
+        CountDownLatch finished = new CountDownLatch(tunnels);
+        AtomicInteger failed = new AtomicInteger();
+        long[] setupNanos = new long[tunnels];
+        long start = System.nanoTime();
+        for (int i = 0; i < tunnels; i++) {
+            inFlight.acquire();
+            opener.open(new Tunnel(i, setupNanos, inFlight, finished, failed), payload);
+        }
+        boolean completed = finished.await(600, TimeUnit.SECONDS);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        if (!completed) {
+            System.out.println(name + " 未在超时内完成，剩余隧道: " + finished.getCount());
+        }
+        return new Result(name, tunnels, failed.get(), elapsed, (long) tunnels * payload, setupNanos);
+    }
+
+    @ChannelHandler.Sharable
+    private static final class EchoHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ctx.writeAndFlush(msg);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Opener {
+        void open(Tunnel tunnel, int payload);
+    }
+
+    /**
+     * 一条隧道的计时和完成状态，建立和完成各只记录一次
+     */
+    private static final class Tunnel {
+        private final int index;
+        private final long[] setupNanos;
+        private final Semaphore inFlight;
+        private final CountDownLatch finished;
+        private final AtomicInteger failed;
+        private final long startedAt = System.nanoTime();
+        private boolean done;
+
+        Tunnel(int index, long[] setupNanos, Semaphore inFlight, CountDownLatch finished, AtomicInteger failed) {
+            this.index = index;
+            this.setupNanos = setupNanos;
+            this.inFlight = inFlight;
+            this.finished = finished;
+            this.failed = failed;
+        }
+
+        void established() {
+            setupNanos[index] = System.nanoTime() - startedAt;
+        }
+
+        synchronized void complete() {
+            if (!done) {
+                done = true;
+                inFlight.release();
+                finished.countDown();
+            }
+        }
+
+        synchronized void fail() {
+            if (!done) {
+                failed.incrementAndGet();
+                complete();
+            }
+        }
+    }
+
+    private record Result(String name, int tunnels, int failed, double seconds, long bytes, long[] setupNanos) {
+        void print() {
+            long[] sorted = Arrays.stream(setupNanos).filter(n -> n > 0).sorted().toArray();
+            double p50 = sorted.length == 0 ? 0 : sorted[sorted.length / 2] / 1e6;
+            double p99 = sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, (int) (sorted.length * 0.99))] / 1e6;
+            System.out.printf("%-10s tunnels/s=%.0f throughput=%.1f MB/s setup p50=%.2f ms p99=%.2f ms failed=%d%n",
+                    name, tunnels / seconds, bytes / seconds / (1024 * 1024), p50, p99, failed);
+        }
+    }
+
+    /**
+     * 在一个HTTP/2流上发起CONNECT，收到200后发送数据，全部回显后以END_STREAM结束
+     */
+    private static final class H2ConnectClient extends ChannelInboundHandlerAdapter {
+        private final int payload;
+        private final Tunnel tunnel;
+        private int received;
+
+        H2ConnectClient(int payload, Tunnel tunnel) {
+            this.payload = payload;
+            this.tunnel = tunnel;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            try {
+                if (msg instanceof Http2HeadersFrame) {
+                    if (!"200".contentEquals(((Http2HeadersFrame) msg).headers().status())) {
+                        tunnel.fail();
+                        ctx.close();
+                        return;
+                    }
+                    tunnel.established();
+                    for (int sent = 0; sent < payload; sent += CHUNK) {
+                        int size = Math.min(CHUNK, payload - sent);
+                        ctx.write(new DefaultHttp2DataFrame(ctx.alloc().buffer(size).writeZero(size)));
+                    }
+                    ctx.flush();
+                } else if (msg instanceof Http2DataFrame) {
+                    received += ((Http2DataFrame) msg).content().readableBytes();
+                    if (received >= payload) {
+                        tunnel.complete();
+                        ctx.writeAndFlush(new DefaultHttp2DataFrame(true));
+                    }
+                }
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            tunnel.fail();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            tunnel.fail();
+            ctx.close();
+        }
+    }
+
+    /**
+     * 在一条TCP连接上发起HTTP/1.1 CONNECT，读到响应头后发送数据，全部回显后关闭连接
+     */
+    private static final class H1ConnectClient extends ChannelInboundHandlerAdapter {
+        private final int echoPort;
+        private final int payload;
+        private final Tunnel tunnel;
+        private ByteBuf head;
+        private int received;
+
+        H1ConnectClient(int echoPort, int payload, Tunnel tunnel) {
+            this.echoPort = echoPort;
+            this.payload = payload;
+            this.tunnel = tunnel;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            String request = "CONNECT 127.0.0.1:" + echoPort + " HTTP/1.1\r\nHost: 127.0.0.1:" + echoPort + "\r\n\r\n";
+            ctx.writeAndFlush(Unpooled.copiedBuffer(request, StandardCharsets.US_ASCII));
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ByteBuf in = (ByteBuf) msg;
+            try {
+                if (head == null) {
+                    received += in.readableBytes();
+                    if (received >= payload) {
+                        tunnel.complete();
+                        ctx.close();
+                    }
+                    return;
+                }
+                head.writeBytes(in);
+            } finally {
+                in.release();
+            }
+            String text = head.toString(StandardCharsets.US_ASCII);
+            int end = text.indexOf("\r\n\r\n");
+            if (end < 0) {
+                return;
+            }
+            head.release();
+            head = null;
+            if (!text.startsWith("HTTP/1.1 200")) {
+                tunnel.fail();
+                ctx.close();
+                return;
+            }
+            tunnel.established();
+            for (int sent = 0; sent < payload; sent += CHUNK) {
+                int size = Math.min(CHUNK, payload - sent);
+                ctx.write(ctx.alloc().buffer(size).writeZero(size));
+            }
+            ctx.flush();
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            head = ctx.alloc().buffer(256);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if (head != null) {
+                head.release();
+                head = null;
+            }
+            tunnel.fail();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            tunnel.fail();
+            ctx.close();
+        }
+    }
+}
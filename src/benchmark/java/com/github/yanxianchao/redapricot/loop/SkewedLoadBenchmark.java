@@ -0,0 +1,227 @@
+package com.github.yanxianchao.redapricot.loop;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.DefaultSelectStrategyFactory;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultEventExecutorChooserFactory;
+import io.netty.util.concurrent.EventExecutorChooserFactory;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 偏斜负载基准测试
+ * 先建立少量持续满速回显的大流量连接，再建立大量小报文往返的轻量连接，
+ * 比较轮询选择器和负载感知选择器下轻量连接的往返延迟。
+ * 用法：./gradlew benchmark -Pbench=com.github.yanxianchao.redapricot.loop.SkewedLoadBenchmark -PbenchArgs="roundrobin|loadaware"
+ */
+public final class SkewedLoadBenchmark {
+
+    private static final int SERVER_LOOPS = 8;
+    private static final int HEAVY_CONNECTIONS = 4;
+    private static final int LIGHT_CONNECTIONS = 64;
+    private static final int ROUND_TRIPS = 200;
+    private static final int PING_SIZE = 64;
+    private static final int HEAVY_CHUNK = 64 * 1024;
+
+    private SkewedLoadBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "both";
+        if (!"loadaware".equals(mode)) {
+            run("roundrobin", DefaultEventExecutorChooserFactory.INSTANCE);
+        }
+        if (!"roundrobin".equals(mode)) {
+            LoopBalancer.start();
+            run("loadaware", LoadAwareChooserFactory.INSTANCE);
+        }
+        System.exit(0);
+    }
+
+    private static void run(String name, EventExecutorChooserFactory chooserFactory) throws Exception {
+        EventLoopGroup bossGroup = new NioEventLoopGroup(1);
+        EventLoopGroup serverGroup = new NioEventLoopGroup(SERVER_LOOPS, (Executor) null, chooserFactory,
+                SelectorProvider.provider(), DefaultSelectStrategyFactory.INSTANCE);
+        EventLoopGroup clientGroup = new NioEventLoopGroup(4);
+        try {
+            Channel server = new ServerBootstrap()
+                    .group(bossGroup, serverGroup)
+                    .channel(NioServerSocketChannel.class)
+                    .childOption(ChannelOption.TCP_NODELAY, true)
+                    .childHandler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                            ch.pipeline().addLast(new EchoHandler());
+                        }
+                    })
+                    .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+            InetSocketAddress address = (InetSocketAddress) server.localAddress();
+
+            Bootstrap client = new Bootstrap()
+                    .group(clientGroup)
+                    .channel(NioSocketChannel.class)
+                    .option(ChannelOption.TCP_NODELAY, true);
+
+            List<Channel> heavy = new ArrayList<>();
+            for (int i = 0; i < HEAVY_CONNECTIONS; i++) {
+                heavy.add(client.clone().handler(new HeavyClientHandler()).connect(address).sync().channel());
+            }
+            // 等待负载采样反映大流量连接
+            Thread.sleep(3000);
+
+            List<Long> rtts = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch done = new CountDownLatch(LIGHT_CONNECTIONS);
+            for (int i = 0; i < LIGHT_CONNECTIONS; i++) {
+                client.clone().handler(new LightClientHandler(rtts, done)).connect(address).sync();
+            }
+            done.await(60, TimeUnit.SECONDS);
+
+            List<Long> sorted = new ArrayList<>(rtts);
+            Collections.sort(sorted);
+            System.out.printf("%-10s light RTT (us): samples=%d p50=%d p99=%d max=%d%n", name, sorted.size(),
+                    percentile(sorted, 0.50) / 1000, percentile(sorted, 0.99) / 1000,
+                    sorted.isEmpty() ? 0 : sorted.get(sorted.size() - 1) / 1000);
+
+            for (Channel channel : heavy) {
+                channel.close();
+            }
+            server.close().sync();
+        } finally {
+            clientGroup.shutdownGracefully().sync();
+            serverGroup.shutdownGracefully().sync();
+            bossGroup.shutdownGracefully().sync();
+        }
+    }
+
+    private static long percentile(List<Long> sorted, double p) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        return sorted.get(Math.min(sorted.size() - 1, (int) (sorted.size() * p)));
+    }
+
+    /**
+     * 服务端回显，并把字节数计入所在事件循环的负载
+     */
+    private static final class EchoHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            LoopLoad load = LoopLoad.of(ctx.channel().eventLoop());
+            if (load != null) {
+                load.recordBytes(((ByteBuf) msg).readableBytes());
+            }
+            ctx.write(msg);
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            ctx.flush();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+
+    /**
+     * 持续满速发送，丢弃回显
+     */
+    private static final class HeavyClientHandler extends ChannelInboundHandlerAdapter {
+        private final ByteBuf chunk = Unpooled.unreleasableBuffer(Unpooled.directBuffer(HEAVY_CHUNK).writeZero(HEAVY_CHUNK));
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            send(ctx);
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            send(ctx);
+        }
+
+        private void send(ChannelHandlerContext ctx) {
+            while (ctx.channel().isActive() && ctx.channel().isWritable()) {
+                ctx.writeAndFlush(chunk.duplicate());
+            }
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ReferenceCountUtil.release(msg);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+
+    /**
+     * 小报文往返并记录延迟
+     */
+    private static final class LightClientHandler extends ChannelInboundHandlerAdapter {
+        private final List<Long> rtts;
+        private final CountDownLatch done;
+        private int remaining = ROUND_TRIPS;
+        private int received;
+        private long sentAt;
+
+        LightClientHandler(List<Long> rtts, CountDownLatch done) {
+            this.rtts = rtts;
+            this.done = done;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            ping(ctx);
+        }
+
+        private void ping(ChannelHandlerContext ctx) {
+            received = 0;
+            sentAt = System.nanoTime();
+            ctx.writeAndFlush(ctx.alloc().buffer(PING_SIZE).writeZero(PING_SIZE));
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            received += ((ByteBuf) msg).readableBytes();
+            ReferenceCountUtil.release(msg);
+            if (received < PING_SIZE) {
+                return;
+            }
+            rtts.add(System.nanoTime() - sentAt);
+            if (--remaining > 0) {
+                ping(ctx);
+            } else {
+                done.countDown();
+                ctx.close();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            done.countDown();
+            ctx.close();
+        }
+    }
+}
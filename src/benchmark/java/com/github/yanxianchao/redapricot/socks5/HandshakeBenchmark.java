@@ -0,0 +1,204 @@
+package com.github.yanxianchao.redapricot.socks5;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.socksx.SocksPortUnificationServerHandler;
+import io.netty.util.ReferenceCountUtil;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SOCKS5握手基准测试
+ * 在本机比较原有的编解码器管道和融合握手处理器：每个连接完成问候和CONNECT（目标为本地服务）后立即关闭，
+ * 输出每秒握手数和每个连接在全部线程上分配的字节数。
+ * 用法：java -cp ... com.github.yanxianchao.redapricot.socks5.HandshakeBenchmark [classic|fused|both] [connections] [concurrency]
+ */
+public final class HandshakeBenchmark {
+
+    private HandshakeBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "both";
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        if (!"fused".equals(mode)) {
+            run("classic", false, connections, concurrency);
+        }
+        if (!"classic".equals(mode)) {
+            run("fused", true, connections, concurrency);
+        }
+        System.exit(0);
+    }
+
+    private static void run(String name, boolean fused, int connections, int concurrency) throws Exception {
+        EventLoopGroup group = new NioEventLoopGroup(4);
+        EventLoopGroup clientGroup = new NioEventLoopGroup(2);
+        try {
+            // 目标服务端：丢弃数据
+            Channel sink = new ServerBootstrap().group(group)
+                    .channel(NioServerSocketChannel.class)
+                    .option(ChannelOption.SO_BACKLOG, 4096)
+                    .childHandler(new ChannelInboundHandlerAdapter() {
+                        @Override
+                        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                            ReferenceCountUtil.release(msg);
+                        }
+                    })
+                    .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+            int sinkPort = ((InetSocketAddress) sink.localAddress()).getPort();
+
+            Channel proxy = new ServerBootstrap().group(group)
+                    .channel(NioServerSocketChannel.class)
+                    .option(ChannelOption.SO_BACKLOG, 4096)
+                    .childOption(ChannelOption.TCP_NODELAY, true)
+                    .childHandler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel ch) {
+                            if (fused) {
+                                ch.pipeline().addLast(Socks5FusedHandshakeHandler.INSTANCE);
+                            } else {
+                                ch.pipeline().addLast(new SocksPortUnificationServerHandler());
+                                ch.pipeline().addLast(new Socks5HandshakeHandler());
+                            }
+                        }
+                    })
+                    .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+
+            Bootstrap client = new Bootstrap().group(clientGroup)
+                    .channel(NioSocketChannel.class)
+                    .option(ChannelOption.TCP_NODELAY, true);
+
+            // 预热类加载和JIT
+            handshakes(client, proxy.localAddress(), sinkPort, Math.max(1000, connections / 10), concurrency);
+
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long allocatedBefore = totalAllocated(threads);
+            long start = System.nanoTime();
+            int failed = handshakes(client, proxy.localAddress(), sinkPort, connections, concurrency);
+            long elapsed = System.nanoTime() - start;
+            long allocated = totalAllocated(threads) - allocatedBefore;
+
+            System.out.printf("%-8s connections=%d failed=%d handshakes/s=%.0f alloc/conn=%d B%n", name, connections,
+                    failed, connections / (elapsed / 1e9), allocated / connections);
+            proxy.close().sync();
+            sink.close().sync();
+        } finally {
+            clientGroup.shutdownGracefully().sync();
+            group.shutdownGracefully().sync();
+        }
+    }
+
+    private static int handshakes(Bootstrap client, SocketAddress proxy, int sinkPort, int connections,
+                                  int concurrency) throws InterruptedException {
+        Semaphore inFlight = new Semaphore(concurrency);
+        CountDownLatch done = new CountDownLatch(connections);
+        AtomicInteger failed = new AtomicInteger();
+        for (int i = 0; i < connections; i++) {
+            inFlight.acquire();
+            client.clone().handler(new HandshakeClientHandler(sinkPort, inFlight, done, failed)).connect(proxy)
+                    .addListener((ChannelFuture f) -> {
+                        if (!f.isSuccess()) {
+                            failed.incrementAndGet();
+                            inFlight.release();
+                            done.countDown();
+                        }
+                    });
+        }
+        done.await(120, TimeUnit.SECONDS);
+        return failed.get();
+    }
+
+    private static long totalAllocated(com.sun.management.ThreadMXBean threads) {
+        long total = 0;
+        for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (allocated > 0) {
+                total += allocated;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 客户端：问候 -> CONNECT -> 收到响应后关闭
+     */
+    private static final class HandshakeClientHandler extends ChannelInboundHandlerAdapter {
+        private final int sinkPort;
+        private final Semaphore inFlight;
+        private final CountDownLatch done;
+        private final AtomicInteger failed;
+        private int received;
+        private boolean finished;
+
+        HandshakeClientHandler(int sinkPort, Semaphore inFlight, CountDownLatch done, AtomicInteger failed) {
+            this.sinkPort = sinkPort;
+            this.inFlight = inFlight;
+            this.done = done;
+            this.failed = failed;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            // 问候和CONNECT一起发送，与常见客户端的流水线行为一致
+            ctx.writeAndFlush(Unpooled.wrappedBuffer(new byte[]{0x05, 0x01, 0x00,
+                    0x05, 0x01, 0x00, 0x01, 127, 0, 0, 1, (byte) (sinkPort >> 8), (byte) sinkPort}));
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ByteBuf in = (ByteBuf) msg;
+            // 问候响应2字节，CONNECT响应10字节
+            for (int i = in.readerIndex(); i < in.writerIndex() && !finished; i++, received++) {
+                if ((received == 1 || received == 3) && in.getByte(i) != 0x00) {
+                    finish(ctx, false);
+                }
+            }
+            in.release();
+            if (received >= 12) {
+                finish(ctx, true);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            finish(ctx, false);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            finish(ctx, false);
+        }
+
+        private void finish(ChannelHandlerContext ctx, boolean success) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            if (!success) {
+                failed.incrementAndGet();
+            }
+            ctx.close();
+            inFlight.release();
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.github.yanxianchao.redapricot.socks5;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 空闲隧道内存占用测量
+ * 在本机建立N条经过中继处理器的隧道（客户端 - 代理 - 目标），每条隧道各传一个小报文后保持空闲，
+ * 分别在默认和精简内存配置下输出每条空闲隧道占用的堆内存、池化直接内存和内核TCP内存。
+ * 用法：./gradlew benchmark -Pbench=com.github.yanxianchao.redapricot.socks5.IdleTunnelFootprint -PbenchArgs="10000"
+ * 需要足够的文件描述符（每条隧道4个）；中继处理器按系统属性选择内存配置，
+ * 测量空闲缩回时加上 -Dredapricot.memory.lean=true -Dredapricot.memory.idleTrimSeconds=2
+ */
+public final class IdleTunnelFootprint {
+
+    private static final int PAGE_SIZE = 4096;
+
+    private IdleTunnelFootprint() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int tunnels = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        measure(MemoryProfile.DEFAULT, "default", tunnels);
+        measure(MemoryProfile.LEAN, "lean", tunnels);
+        System.exit(0);
+    }
+
+    private static void measure(MemoryProfile profile, String name, int tunnels) throws Exception {
+        EventLoopGroup group = new NioEventLoopGroup(4);
+        profile.install(group);
+        try {
+            // 目标服务端：读取并丢弃
+            ServerBootstrap sinkBootstrap = new ServerBootstrap().group(group)
+                    .channel(NioServerSocketChannel.class)
+                    .option(ChannelOption.SO_BACKLOG, 4096)
+                    .childHandler(new DiscardHandler());
+            profile.applyChild(sinkBootstrap);
+            Channel sink = sinkBootstrap.bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+
+            // 代理：接受连接后连接目标，两端加入中继处理器
+            Bootstrap upstream = new Bootstrap().group(group).channel(NioSocketChannel.class)
+                    .handler(new DiscardHandler());
+            profile.apply(upstream);
+            ServerBootstrap proxyBootstrap = new ServerBootstrap().group(group)
+                    .channel(NioServerSocketChannel.class)
+                    .option(ChannelOption.SO_BACKLOG, 4096)
+                    .childOption(ChannelOption.AUTO_READ, false)
+                    .childHandler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel client) {
+                            upstream.connect(sink.localAddress()).addListener((ChannelFuture f) -> {
+                                if (!f.isSuccess()) {
+                                    client.close();
+                                    return;
+                                }
+                                f.channel().pipeline().addLast(new RelayHandler(client));
+                                client.pipeline().addLast(new RelayHandler(f.channel()));
+                                client.config().setAutoRead(true);
+                            });
+                        }
+                    });
+            profile.applyChild(proxyBootstrap);
+            Channel proxy = proxyBootstrap.bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+
+            long heapBefore = usedHeap();
+            long directBefore = PooledByteBufAllocator.DEFAULT.metric().usedDirectMemory();
+            long kernelBefore = kernelTcpMemory();
+
+            Bootstrap clientBootstrap = new Bootstrap().group(group).channel(NioSocketChannel.class)
+                    .handler(new DiscardHandler());
+            profile.apply(clientBootstrap);
+            List<Channel> clients = new ArrayList<>(tunnels);
+            byte[] hello = "hello".getBytes(StandardCharsets.US_ASCII);
+            for (int i = 0; i < tunnels; i++) {
+                Channel client = clientBootstrap.connect(proxy.localAddress()).sync().channel();
+                client.writeAndFlush(Unpooled.wrappedBuffer(hello));
+                clients.add(client);
+            }
+            // 等待报文中继完成、连接进入空闲
+            Thread.sleep(5000);
+            if (profile.isLean()) {
+                // 不等待定期任务，立即在每个事件循环上释放池化缓存
+                for (EventExecutor executor : group) {
+                    executor.submit(() -> PooledByteBufAllocator.DEFAULT.trimCurrentThreadCache()).sync();
+                }
+            }
+
+            long heap = usedHeap() - heapBefore;
+            long direct = PooledByteBufAllocator.DEFAULT.metric().usedDirectMemory() - directBefore;
+            long kernel = kernelTcpMemory() - kernelBefore;
+            System.out.printf("%-8s tunnels=%d heap=%d B/tunnel pooledDirect=%d B/tunnel kernelTcp=%d B/tunnel%n",
+                    name, tunnels, heap / tunnels, direct / tunnels, kernel / tunnels);
+
+            for (Channel client : clients) {
+                client.close();
+            }
+            proxy.close().sync();
+            sink.close().sync();
+        } finally {
+            group.shutdownGracefully().sync();
+        }
+    }
+
+    /**
+     * 丢弃读到的数据，所有连接共用一个实例
+     */
+    @ChannelHandler.Sharable
+    private static final class DiscardHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * /proc/net/sockstat中TCP行的mem字段（页数），不是Linux时返回0
+     */
+    private static long kernelTcpMemory() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/net/sockstat"))) {
+                if (!line.startsWith("TCP:")) {
+                    continue;
+                }
+                String[] fields = line.trim().split("\\s+");
+                for (int i = 1; i + 1 < fields.length; i++) {
+                    if ("mem".equals(fields[i])) {
+                        return Long.parseLong(fields[i + 1]) * PAGE_SIZE;
+                    }
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // 非Linux系统不统计内核内存
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,283 @@
+package com.github.yanxianchao.redapricot.tls;
+
+import com.github.yanxianchao.redapricot.socks5.Socks5FusedHandshakeHandler;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.util.ReferenceCountUtil;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TLS监听基准测试
+ * 分别用JDK和OpenSSL实现测量：完整握手和会话恢复握手的每秒次数，以及SOCKS5-over-TLS隧道的中继吞吐量。
+ * 用法：java -cp ... com.github.yanxianchao.redapricot.tls.TlsBenchmark [jdk|openssl|both] [handshakes] [relayMegabytes] [cert.pem key.pem]
+ * 未指定证书时生成自签名证书（JDK 17需要 --add-exports java.base/sun.security.x509=ALL-UNNAMED）
+ */
+public final class TlsBenchmark {
+
+    private static final int CONCURRENCY = 32;
+    private static final int CHUNK = 16 * 1024;
+
+    private TlsBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "both";
+        int handshakes = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int relayMegabytes = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+        File cert;
+        File key;
+        if (args.length > 4) {
+            cert = new File(args[3]);
+            key = new File(args[4]);
+        } else {
+            SelfSignedCertificate selfSigned = new SelfSignedCertificate("localhost");
+            cert = selfSigned.certificate();
+            key = selfSigned.privateKey();
+        }
+
+        List<SslProvider> providers = new ArrayList<>();
+        if (!"openssl".equals(mode)) {
+            providers.add(SslProvider.JDK);
+        }
+        if (!"jdk".equals(mode)) {
+            if (OpenSsl.isAvailable()) {
+                providers.add(SslProvider.OPENSSL);
+            } else {
+                System.out.println("OpenSSL不可用，跳过: " + OpenSsl.unavailabilityCause());
+            }
+        }
+        for (SslProvider provider : providers) {
+            run(provider, cert, key, handshakes, relayMegabytes);
+        }
+        System.exit(0);
+    }
+
+    private static void run(SslProvider provider, File cert, File key, int handshakes, int relayMegabytes) throws Exception {
+        ReloadableSslContext serverContext = new ReloadableSslContext(provider, cert, key, 20480, 3600);
+        EventLoopGroup serverGroup = new NioEventLoopGroup(4);
+        EventLoopGroup clientGroup = new NioEventLoopGroup(4);
+        try {
+            SslContext clientContext = SslContextBuilder.forClient()
+                    .sslProvider(provider)
+                    .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                    .build();
+
+            // 握手测试：服务端只做TLS握手
+            Channel handshakeServer = new ServerBootstrap().group(serverGroup)
+                    .channel(NioServerSocketChannel.class)
+                    .option(ChannelOption.SO_BACKLOG, 4096)
+                    .childHandler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel ch) {
+                            ch.pipeline().addLast(serverContext.newHandler(ch.alloc()));
+                        }
+                    })
+                    .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+            InetSocketAddress address = (InetSocketAddress) handshakeServer.localAddress();
+            Bootstrap client = new Bootstrap().group(clientGroup).channel(NioSocketChannel.class);
+
+            // 不带对端地址创建的客户端引擎不会查找缓存的会话，每次都是完整握手
+            handshakes(client, address, clientContext, false, handshakes / 10);
+            double full = handshakes(client, address, clientContext, false, handshakes);
+            handshakes(client, address, clientContext, true, handshakes / 10);
+            double resumed = handshakes(client, address, clientContext, true, handshakes);
+            System.out.printf("%-8s full handshakes/s=%.0f resumed handshakes/s=%.0f%n", provider, full, resumed);
+            handshakeServer.close().sync();
+
+            double throughput = relayThroughput(serverGroup, clientGroup, serverContext, clientContext, relayMegabytes);
+            System.out.printf("%-8s SOCKS5-over-TLS relay throughput=%.1f MB/s%n", provider, throughput);
+        } finally {
+            serverContext.shutdown();
+            clientGroup.shutdownGracefully().sync();
+            serverGroup.shutdownGracefully().sync();
+        }
+    }
+
+    /**
+     * @return 每秒完成的握手数
+     */
+    private static double handshakes(Bootstrap client, InetSocketAddress address, SslContext clientContext,
+                                     boolean resume, int count) throws InterruptedException {
+        Semaphore inFlight = new Semaphore(CONCURRENCY);
+        CountDownLatch done = new CountDownLatch(count);
+        AtomicInteger failed = new AtomicInteger();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            inFlight.acquire();
+            client.clone().handler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel ch) {
+                    SslHandler ssl = resume
+                            ? clientContext.newHandler(ch.alloc(), address.getHostString(), address.getPort())
+                            : clientContext.newHandler(ch.alloc());
+                    ch.pipeline().addLast(ssl);
+                    ssl.handshakeFuture().addListener(f -> {
+                        if (!f.isSuccess()) {
+                            failed.incrementAndGet();
+                        }
+                        ch.close();
+                        inFlight.release();
+                        done.countDown();
+                    });
+                }
+            }).connect(address).addListener((ChannelFuture f) -> {
+                if (!f.isSuccess()) {
+                    failed.incrementAndGet();
+                    inFlight.release();
+                    done.countDown();
+                }
+            });
+        }
+        done.await(300, TimeUnit.SECONDS);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        if (failed.get() > 0) {
+            System.out.println("握手失败: " + failed.get());
+        }
+        return count / elapsed;
+    }
+
+    /**
+     * 客户端 -TLS-> SOCKS5代理 -> 本地服务，客户端持续发送，本地服务计数
+     *
+     * @return MB/s
+     */
+    private static double relayThroughput(EventLoopGroup serverGroup, EventLoopGroup clientGroup,
+                                          ReloadableSslContext serverContext, SslContext clientContext,
+                                          int megabytes) throws Exception {
+        long total = (long) megabytes * 1024 * 1024;
+        AtomicLong received = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicLong finishedAt = new AtomicLong();
+        Channel sink = new ServerBootstrap().group(serverGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInboundHandlerAdapter() {
+                    @Override
+                    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                        if (received.addAndGet(((ByteBuf) msg).readableBytes()) >= total && finishedAt.get() == 0) {
+                            finishedAt.set(System.nanoTime());
+                            done.countDown();
+                        }
+                        ReferenceCountUtil.release(msg);
+                    }
+                })
+                .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+        int sinkPort = ((InetSocketAddress) sink.localAddress()).getPort();
+
+        Channel proxy = new ServerBootstrap().group(serverGroup)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(serverContext.newHandler(ch.alloc()));
+                        ch.pipeline().addLast(Socks5FusedHandshakeHandler.INSTANCE);
+                    }
+                })
+                .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+
+        AtomicLong startedAt = new AtomicLong();
+        Channel tunnel = new Bootstrap().group(clientGroup)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(clientContext.newHandler(ch.alloc()));
+                        ch.pipeline().addLast(new BulkSocksClient(sinkPort, total, startedAt));
+                    }
+                })
+                .connect(proxy.localAddress()).sync().channel();
+        boolean finished = done.await(300, TimeUnit.SECONDS);
+        tunnel.close();
+        proxy.close().sync();
+        sink.close().sync();
+        if (!finished) {
+            System.out.println("中继未在超时内完成，已接收字节: " + received.get());
+            return 0;
+        }
+        return megabytes / ((finishedAt.get() - startedAt.get()) / 1e9);
+    }
+
+    /**
+     * 完成SOCKS5握手后按可写性持续发送，直到发送完指定字节数
+     */
+    private static final class BulkSocksClient extends ChannelInboundHandlerAdapter {
+        private final ByteBuf chunk = Unpooled.unreleasableBuffer(Unpooled.directBuffer(CHUNK).writeZero(CHUNK));
+        private final int sinkPort;
+        private final long total;
+        private final AtomicLong startedAt;
+        private int replyBytes;
+        private long sent;
+
+        BulkSocksClient(int sinkPort, long total, AtomicLong startedAt) {
+            this.sinkPort = sinkPort;
+            this.total = total;
+            this.startedAt = startedAt;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            ctx.writeAndFlush(Unpooled.wrappedBuffer(new byte[]{0x05, 0x01, 0x00,
+                    0x05, 0x01, 0x00, 0x01, 127, 0, 0, 1, (byte) (sinkPort >> 8), (byte) sinkPort}));
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            replyBytes += ((ByteBuf) msg).readableBytes();
+            ReferenceCountUtil.release(msg);
+            // 问候响应2字节 + CONNECT响应10字节
+            if (replyBytes == 12) {
+                startedAt.set(System.nanoTime());
+                send(ctx);
+            }
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            if (startedAt.get() != 0) {
+                send(ctx);
+            }
+        }
+
+        private void send(ChannelHandlerContext ctx) {
+            while (sent < total && ctx.channel().isWritable()) {
+                ctx.writeAndFlush(chunk.duplicate());
+                sent += CHUNK;
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+}
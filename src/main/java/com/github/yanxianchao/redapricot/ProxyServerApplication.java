@@ -1,10 +1,15 @@
 package com.github.yanxianchao.redapricot;
 
+import com.github.yanxianchao.redapricot.admin.AdminServer;
 import com.github.yanxianchao.redapricot.http.HttpProxyServer;
 import com.github.yanxianchao.redapricot.socks5.Socks5ProxyServer;
+import com.github.yanxianchao.redapricot.startup.Readiness;
+import com.github.yanxianchao.redapricot.stats.HeavyHitters;
+import com.github.yanxianchao.redapricot.stats.TrafficAccounting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -16,6 +21,9 @@ public class ProxyServerApplication {
     
     private static final Logger logger = LoggerFactory.getLogger(ProxyServerApplication.class);
 
+    // 本地管理端点端口，0表示不启用（-Dredapricot.admin.port=9090）
+    private static final int ADMIN_PORT = Integer.getInteger("redapricot.admin.port", 0);
+
     public static void main(String[] args) {
         ProxyServerApplication app = new ProxyServerApplication();
         app.start();
@@ -24,6 +32,7 @@ public class ProxyServerApplication {
     public void start() {
         try {
             logger.info("正在启动代理服务器...");
+            Readiness.markStarting();
 
             /**
             // 启动HTTP代理服务器
@@ -46,7 +55,8 @@ public class ProxyServerApplication {
                     logger.error("SOCKS5代理服务器启动失败", e);
                 }
             }).start();
-            logger.info("代理服务器启动完成");
+            // 启动完成由Socks5ProxyServer在监听端口绑定并预热后标记
+            startAdminServer();
             
         } catch (Exception e) {
             logger.error("代理服务器启动失败", e);
@@ -54,4 +64,21 @@ public class ProxyServerApplication {
         }
     }
 
+    /**
+     * 启动本地管理端点
+     */
+    private void startAdminServer() throws IOException {
+        if (ADMIN_PORT <= 0) {
+            return;
+        }
+        AdminServer adminServer = new AdminServer(ADMIN_PORT);
+        adminServer.start();
+        // 热点目标地址和客户端，例如 /stats/top?n=20
+        adminServer.register("/stats/top", params -> HeavyHitters.report(Integer.parseInt(params.getOrDefault("n", "20"))));
+        // 就绪检查，监听端口绑定并预热完成前返回503
+        adminServer.register("/ready", params -> Readiness.report(), Readiness::isReady);
+        // 按用户和客户端IP的累计流量与配额，例如 /stats/traffic?n=50
+        adminServer.register("/stats/traffic", params -> TrafficAccounting.report(Integer.parseInt(params.getOrDefault("n", "50"))));
+    }
+
 }
@@ -0,0 +1,102 @@
+package com.github.yanxianchao.redapricot.admin;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+/**
+ * 本地管理端点
+ * 只绑定回环地址，在独立线程上处理请求，不占用事件循环
+ */
+public class AdminServer {
+    private static final Logger logger = LoggerFactory.getLogger(AdminServer.class);
+
+    private final int port;
+    private HttpServer server;
+
+    public AdminServer(int port) {
+        this.port = port;
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "admin-server");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        logger.info("管理端点已启动，监听地址: {}", server.getAddress());
+    }
+
+    /**
+     * 注册文本端点
+     *
+     * @param path    请求路径
+     * @param handler 根据查询参数生成响应内容
+     */
+    public void register(String path, Function<Map<String, String>, String> handler) {
+        register(path, handler, () -> true);
+    }
+
+    /**
+     * 注册带可用状态的文本端点，不可用时返回503，用于就绪检查
+     *
+     * @param path      请求路径
+     * @param handler   根据查询参数生成响应内容
+     * @param available 当前是否可用
+     */
+    public void register(String path, Function<Map<String, String>, String> handler, BooleanSupplier available) {
+        server.createContext(path, exchange -> {
+            try {
+                int status = available.getAsBoolean() ? 200 : 503;
+                respond(exchange, status, handler.apply(parseQuery(exchange.getRequestURI().getRawQuery())));
+            } catch (Exception e) {
+                logger.warn("管理端点处理失败: {}", path, e);
+                respond(exchange, 500, "error: " + e.getMessage() + "\n");
+            }
+        });
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int idx = pair.indexOf('=');
+            if (idx > 0) {
+                params.put(pair.substring(0, idx), pair.substring(idx + 1));
+            } else {
+                params.put(pair, "");
+            }
+        }
+        return params;
+    }
+}
@@ -1,43 +1,77 @@
 package com.github.yanxianchao.redapricot.http;
 
+import com.github.yanxianchao.redapricot.stats.HeavyHitters;
+import com.github.yanxianchao.redapricot.stats.TrafficAccounting;
+import com.github.yanxianchao.redapricot.stats.TunnelMeter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 客户端连接处理器
  * 负责处理单个客户端连接的所有操作
  */
-public record ClientConnectionHandler(Socket clientSocket, java.util.concurrent.ThreadPoolExecutor workerThreadPool)
+public record ClientConnectionHandler(Socket clientSocket, java.util.concurrent.ThreadPoolExecutor workerThreadPool,
+                                      HttpResponseCache responseCache)
         implements ConnectionHandler {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ClientConnectionHandler.class);
 
     private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_HEAD_SIZE = 64 * 1024;
+    // 等待同一URL的其他回源完成的最长时间
+    private static final long IN_FLIGHT_WAIT_SECONDS = 30;
+
+    public ClientConnectionHandler(Socket clientSocket, java.util.concurrent.ThreadPoolExecutor workerThreadPool) {
+        this(clientSocket, workerThreadPool, null);
+    }
+
+    /**
+     * HTTP消息头：起始行和原始头部行
+     */
+    record Head(String startLine, List<String> headers) {
+
+        String header(String name) {
+            for (String line : headers) {
+                int idx = line.indexOf(':');
+                if (idx > 0 && line.substring(0, idx).trim().equalsIgnoreCase(name)) {
+                    return line.substring(idx + 1).trim();
+                }
+            }
+            return null;
+        }
+    }
 
     @Override
     public void run() {
         try {
             LOGGER.info("New client connected: {}", clientSocket.getInetAddress().getHostAddress());
-            // 解析目标主机和端口
-            String[] hostPort = parseTargetHost(getRequestLine());
-            // 创建服务套接字
-            LOGGER.info("start connected to target server: {}", Arrays.toString(hostPort));
-            Socket serverSocket = new Socket(hostPort[0], Integer.parseInt(hostPort[1]));
-            LOGGER.info("Connected to target server: {}", serverSocket.getInetAddress().getHostAddress());
-            // 发送连接成功的响应给客户端
-            sendConnectionEstablishedResponse();
-            LOGGER.info("Connection established.");
-            // 创建并启动客户端到服务器的数据传输线程
-            workerThreadPool.execute(createRelayThread(clientSocket, serverSocket));
-            // 创建并启动服务器到客户端的数据传输线程
-            workerThreadPool.execute(createRelayThread(serverSocket, clientSocket));
+            // 读取完整请求头，剩余数据保留在同一个输入流中继续转发
+            InputStream clientIn = new BufferedInputStream(clientSocket.getInputStream(), BUFFER_SIZE);
+            Head request = readHead(clientIn);
+            String requestLine = request.startLine();
+            LOGGER.info("Request line: " + requestLine);
+            if (requestLine.startsWith("CONNECT ")) {
+                tunnel(clientIn, requestLine);
+            } else {
+                forward(clientIn, request);
+            }
         } catch (Exception e) {
             LOGGER.error("Error handling client request: {}", e.getMessage());
             sendErrorResponse(e.getMessage());
@@ -45,13 +79,379 @@ public record ClientConnectionHandler(Socket clientSocket, java.util.concurrent.
         }
     }
 
-    private String getRequestLine() throws IOException {
-        // 读取客户端的第一行请求
-        String requestLine = new BufferedReader(new InputStreamReader(clientSocket.getInputStream(), StandardCharsets.UTF_8)).readLine();
-        LOGGER.info("Request line: " + requestLine);
-        if (requestLine == null || requestLine.isEmpty())
-            throw new RuntimeException("Invalid request line: " + requestLine);
-        return requestLine;
+    /**
+     * 处理CONNECT隧道
+     */
+    private void tunnel(InputStream clientIn, String requestLine) throws IOException {
+        // 解析目标主机和端口
+        String[] hostPort = parseTargetHost(requestLine);
+        // 创建服务套接字
+        LOGGER.info("start connected to target server: {}", Arrays.toString(hostPort));
+        Socket serverSocket = new Socket(hostPort[0], Integer.parseInt(hostPort[1]));
+        LOGGER.info("Connected to target server: {}", serverSocket.getInetAddress().getHostAddress());
+        // 发送连接成功的响应给客户端
+        sendConnectionEstablishedResponse();
+        LOGGER.info("Connection established.");
+        relay(clientIn, serverSocket, hostPort[0] + ":" + hostPort[1]);
+    }
+
+    /**
+     * 转发普通HTTP请求，GET请求在启用缓存时经过响应缓存
+     */
+    private void forward(InputStream clientIn, Head request) throws Exception {
+        String[] parts = request.startLine().split(" ");
+        if (parts.length < 3)
+            throw new RuntimeException("Invalid request line: " + request.startLine());
+
+        String method = parts[0];
+        String url = parts[1];
+        String authority;
+        String path;
+        if (url.startsWith("http://")) {
+            int slashIndex = url.indexOf('/', 7);
+            authority = slashIndex == -1 ? url.substring(7) : url.substring(7, slashIndex);
+            path = slashIndex == -1 ? "/" : url.substring(slashIndex);
+        } else {
+            authority = request.header("Host");
+            path = url;
+        }
+        if (authority == null || authority.isEmpty())
+            throw new RuntimeException("Invalid target host: " + url);
+        String[] hostPort = authority.contains(":") ? authority.split(":") : new String[]{authority, "80"};
+
+        boolean cacheable = responseCache != null && "GET".equals(method) && !hasDirective(request.header("Cache-Control"), "no-store");
+        byte[] originHead = buildOriginHead(method + " " + path + " HTTP/1.1", request.headers(), cacheable);
+        if (cacheable) {
+            cachedGet("http://" + authority + path, hostPort, originHead, hasDirective(request.header("Cache-Control"), "no-cache"),
+                    request.header("Authorization") != null);
+        } else {
+            Socket serverSocket = new Socket(hostPort[0], Integer.parseInt(hostPort[1]));
+            serverSocket.getOutputStream().write(originHead);
+            relay(clientIn, serverSocket, hostPort[0] + ":" + hostPort[1]);
+        }
+    }
+
+    /**
+     * 带缓存的GET：新鲜命中直接零拷贝发送；同一URL的并发未命中只回源一次
+     */
+    private void cachedGet(String key, String[] hostPort, byte[] originHead, boolean revalidate, boolean authorized)
+            throws Exception {
+        HttpResponseCache.Entry entry = responseCache.get(key);
+        if (entry != null && entry.isFresh() && !revalidate && serveFromCache(entry)) {
+            responseCache.recordHit();
+            return;
+        }
+
+        CompletableFuture<HttpResponseCache.Entry> mine = new CompletableFuture<>();
+        CompletableFuture<HttpResponseCache.Entry> leader = responseCache.joinInFlight(key, mine);
+        if (leader != null) {
+            HttpResponseCache.Entry shared = null;
+            try {
+                shared = leader.get(IN_FLIGHT_WAIT_SECONDS, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                LOGGER.debug("Waiting for in-flight fetch failed: {}", key);
+            }
+            if (shared != null && serveFromCache(shared)) {
+                responseCache.recordHit();
+                return;
+            }
+            // 响应不可缓存，自行回源
+            try {
+                fetch(key, hostPort, originHead, null, authorized);
+            } finally {
+                closeQuietly(clientSocket);
+            }
+            return;
+        }
+
+        HttpResponseCache.Entry result = null;
+        try {
+            result = fetch(key, hostPort, originHead, entry, authorized);
+        } finally {
+            responseCache.completeInFlight(key, mine, result);
+            closeQuietly(clientSocket);
+        }
+    }
+
+    /**
+     * 回源并把响应发送给客户端，可缓存的响应写入缓存
+     *
+     * @param stale      已过期的缓存项，不为null时发送条件请求
+     * @param authorized 请求是否带有Authorization头
+     * @return 写入或重新验证的缓存项，响应不可缓存时返回null
+     */
+    private HttpResponseCache.Entry fetch(String key, String[] hostPort, byte[] originHead, HttpResponseCache.Entry stale,
+                                          boolean authorized) throws IOException {
+        responseCache.recordMiss();
+        if (stale != null && !responseCache.isLive(stale)) {
+            // 缓存项所在分段已被淘汰，304无法从缓存发送，直接发送完整请求
+            stale = null;
+        }
+        try (Socket serverSocket = new Socket(hostPort[0], Integer.parseInt(hostPort[1]))) {
+            OutputStream serverOut = serverSocket.getOutputStream();
+            serverOut.write(withConditionalHeaders(originHead, stale));
+            serverOut.flush();
+
+            InputStream serverIn = new BufferedInputStream(serverSocket.getInputStream(), BUFFER_SIZE);
+            Head response = readHead(serverIn);
+            String[] statusParts = response.startLine().split(" ");
+            int status = statusParts.length > 1 ? Integer.parseInt(statusParts[1]) : 0;
+            long expiresAt = expiresAt(status, response, authorized);
+
+            if (status == 304 && stale != null) {
+                stale.expiresAt = refreshedExpiresAt(response, stale, System.currentTimeMillis());
+                responseCache.recordRevalidation();
+                if (serveFromCache(stale)) {
+                    return stale;
+                }
+                // 重新验证期间分段被淘汰，去掉条件请求头重新回源
+                LOGGER.debug("Cached response evicted during revalidation, refetching: {}", key);
+                responseCache.remove(key, stale);
+                return fetch(key, hostPort, originHead, null, authorized);
+            }
+
+            byte[] head = buildResponseHead(response);
+            OutputStream clientOut = clientSocket.getOutputStream();
+            long length = contentLength(response);
+            if (expiresAt > 0 && length >= 0 && response.header("Transfer-Encoding") == null
+                    && head.length + length <= HttpResponseCache.MAX_OBJECT_SIZE) {
+                byte[] body = serverIn.readNBytes((int) length);
+                clientOut.write(head);
+                clientOut.write(body);
+                clientOut.flush();
+                if (body.length != length) {
+                    // 源站提前关闭，不完整的响应只转发不缓存
+                    LOGGER.debug("Truncated response body ({} of {} bytes), not caching: {}", body.length, length, key);
+                    return null;
+                }
+                return responseCache.put(key, head, body, body.length,
+                        response.header("ETag"), response.header("Last-Modified"), expiresAt);
+            }
+
+            // 不可缓存的响应直接转发
+            clientOut.write(head);
+            serverIn.transferTo(clientOut);
+            clientOut.flush();
+            return null;
+        }
+    }
+
+    private boolean serveFromCache(HttpResponseCache.Entry entry) throws IOException {
+        if (clientSocket.getChannel() == null) {
+            return false;
+        }
+        if (responseCache.serve(entry, clientSocket.getChannel())) {
+            closeQuietly(clientSocket);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 根据Cache-Control和Expires计算缓存过期时间
+     *
+     * @param authorized 请求带有Authorization时，只有响应带public或s-maxage才允许缓存
+     * @return 不可缓存时返回-1；需要每次重新验证时返回当前时间
+     */
+    static long expiresAt(int status, Head response, boolean authorized) {
+        if (status != 200 || response.header("Vary") != null || response.header("Set-Cookie") != null) {
+            return -1;
+        }
+        String cacheControl = response.header("Cache-Control");
+        if (hasDirective(cacheControl, "no-store") || hasDirective(cacheControl, "private")) {
+            return -1;
+        }
+        if (authorized && !hasDirective(cacheControl, "public") && !hasDirective(cacheControl, "s-maxage")) {
+            return -1;
+        }
+        long now = System.currentTimeMillis();
+        long lifetime = freshnessLifetime(response);
+        if (lifetime >= 0) {
+            return now + lifetime;
+        }
+        // 没有显式有效期，但可以通过ETag/Last-Modified重新验证
+        if (response.header("ETag") != null || response.header("Last-Modified") != null) {
+            return now;
+        }
+        return -1;
+    }
+
+    /**
+     * 响应头给出的新鲜期（毫秒），依次取no-cache、s-maxage、max-age、Expires
+     *
+     * @return 没有给出有效期时返回-1；无法解析的Expires按已过期处理
+     */
+    static long freshnessLifetime(Head response) {
+        String cacheControl = response.header("Cache-Control");
+        if (hasDirective(cacheControl, "no-cache")) {
+            return 0;
+        }
+        long maxAge = directiveSeconds(cacheControl, "s-maxage");
+        if (maxAge < 0) {
+            maxAge = directiveSeconds(cacheControl, "max-age");
+        }
+        if (maxAge >= 0) {
+            return TimeUnit.SECONDS.toMillis(maxAge);
+        }
+        String expires = response.header("Expires");
+        if (expires == null) {
+            return -1;
+        }
+        try {
+            long expiresMillis = parseHttpDate(expires);
+            // 按源站的Date计算差值，避免两边时钟不一致
+            String date = response.header("Date");
+            long base = date != null ? parseHttpDate(date) : System.currentTimeMillis();
+            return Math.max(0, expiresMillis - base);
+        } catch (DateTimeParseException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 304响应按自身的Cache-Control/Expires刷新有效期，没有给出时沿用缓存项原来的新鲜期
+     */
+    static long refreshedExpiresAt(Head response, HttpResponseCache.Entry stale, long now) {
+        long lifetime = freshnessLifetime(response);
+        return now + (lifetime >= 0 ? lifetime : stale.lifetime);
+    }
+
+    /**
+     * 响应的Content-Length
+     *
+     * @return 没有、格式错误或为负数时返回-1，按不可缓存处理
+     */
+    static long contentLength(Head response) {
+        String value = response.header("Content-Length");
+        if (value == null) {
+            return -1;
+        }
+        try {
+            long length = Long.parseLong(value.trim());
+            return length >= 0 ? length : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long parseHttpDate(String value) {
+        return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+    }
+
+    private static boolean hasDirective(String cacheControl, String directive) {
+        if (cacheControl == null) {
+            return false;
+        }
+        for (String part : cacheControl.toLowerCase(Locale.ROOT).split(",")) {
+            String token = part.trim();
+            if (token.equals(directive) || token.startsWith(directive + "=")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long directiveSeconds(String cacheControl, String directive) {
+        if (cacheControl == null) {
+            return -1;
+        }
+        for (String part : cacheControl.toLowerCase(Locale.ROOT).split(",")) {
+            String token = part.trim();
+            if (token.startsWith(directive + "=")) {
+                try {
+                    return Long.parseLong(token.substring(directive.length() + 1).replace("\"", ""));
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 构造发往源站的请求头：去掉逐跳头部，每个连接只处理一个请求
+     *
+     * @param stripConditional 是否去掉客户端的条件请求头，使缓存拿到完整响应
+     */
+    private static byte[] buildOriginHead(String requestLine, List<String> headers, boolean stripConditional) {
+        StringBuilder sb = new StringBuilder(requestLine).append("\r\n");
+        for (String line : headers) {
+            String name = line.substring(0, Math.max(0, line.indexOf(':'))).trim().toLowerCase(Locale.ROOT);
+            if (name.equals("proxy-connection") || name.equals("connection") || name.equals("keep-alive")
+                    || name.equals("proxy-authorization")) {
+                continue;
+            }
+            if (stripConditional && (name.equals("if-none-match") || name.equals("if-modified-since"))) {
+                continue;
+            }
+            sb.append(line).append("\r\n");
+        }
+        sb.append("Connection: close\r\n\r\n");
+        return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    static byte[] withConditionalHeaders(byte[] originHead, HttpResponseCache.Entry stale) {
+        if (stale == null || (stale.etag == null && stale.lastModified == null)) {
+            return originHead;
+        }
+        // 在结尾的空行之前插入条件请求头
+        String head = new String(originHead, 0, originHead.length - 2, StandardCharsets.ISO_8859_1);
+        StringBuilder sb = new StringBuilder(head);
+        if (stale.etag != null) {
+            sb.append("If-None-Match: ").append(stale.etag).append("\r\n");
+        }
+        if (stale.lastModified != null) {
+            sb.append("If-Modified-Since: ").append(stale.lastModified).append("\r\n");
+        }
+        sb.append("\r\n");
+        return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] buildResponseHead(Head response) {
+        StringBuilder sb = new StringBuilder(response.startLine()).append("\r\n");
+        for (String line : response.headers()) {
+            String name = line.substring(0, Math.max(0, line.indexOf(':'))).trim().toLowerCase(Locale.ROOT);
+            if (name.equals("connection") || name.equals("keep-alive")) {
+                continue;
+            }
+            sb.append(line).append("\r\n");
+        }
+        sb.append("Connection: close\r\n\r\n");
+        return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * 读取HTTP消息头直到空行，不读取消息体
+     */
+    private static Head readHead(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        String startLine = null;
+        List<String> headers = new ArrayList<>();
+        int total = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+            if (++total > MAX_HEAD_SIZE)
+                throw new RuntimeException("Request head too large");
+            if (b != '\n') {
+                line.write(b);
+                continue;
+            }
+            String value = line.toString(StandardCharsets.ISO_8859_1);
+            if (value.endsWith("\r")) {
+                value = value.substring(0, value.length() - 1);
+            }
+            line.reset();
+            if (startLine == null) {
+                startLine = value;
+            } else if (value.isEmpty()) {
+                return new Head(startLine, headers);
+            } else {
+                headers.add(value);
+            }
+        }
+        if (startLine == null || startLine.isEmpty())
+            throw new RuntimeException("Invalid request line: " + startLine);
+        return new Head(startLine, headers);
     }
 
     /**
@@ -66,20 +466,20 @@ public record ClientConnectionHandler(Socket clientSocket, java.util.concurrent.
             throw new RuntimeException("Invalid request line: " + requestLine);
 
         String target = parts[1];
-        
+
         // 处理完整URL格式 (http://example.com:8080/path)
         if (target.startsWith("http://")) {
             target = target.substring(7);
         } else if (target.startsWith("https://")) {
             target = target.substring(8);
         }
-        
+
         // 移除路径部分，只保留host:port
         int slashIndex = target.indexOf('/');
         if (slashIndex != -1) {
             target = target.substring(0, slashIndex);
         }
-        
+
         // 解析host和port
         String[] hostPort;
         if (target.contains(":")) {
@@ -88,7 +488,7 @@ public record ClientConnectionHandler(Socket clientSocket, java.util.concurrent.
             // 默认端口
             hostPort = new String[]{target, "80"};
         }
-        
+
         if (hostPort.length < 2 || hostPort[0].isEmpty())
             throw new RuntimeException("Invalid target host: " + target);
 
@@ -106,25 +506,53 @@ public record ClientConnectionHandler(Socket clientSocket, java.util.concurrent.
         clientSocket.getOutputStream().flush();
     }
 
+    /**
+     * 启动双向转发，客户端方向从已缓冲的输入流继续读取
+     */
+    private void relay(InputStream clientIn, Socket serverSocket, String destinationKey) throws IOException {
+        String clientKey = HeavyHitters.clientKey(clientSocket.getRemoteSocketAddress());
+        // 创建并启动客户端到服务器的数据传输线程
+        workerThreadPool.execute(createRelayThread(clientIn, clientSocket, serverSocket,
+                TunnelMeter.open(clientKey, destinationKey, null, true)));
+        // 创建并启动服务器到客户端的数据传输线程
+        workerThreadPool.execute(createRelayThread(serverSocket.getInputStream(), serverSocket, clientSocket,
+                TunnelMeter.open(clientKey, destinationKey, null, false)));
+    }
+
     /**
      * 创建数据转发线程
      *
+     * @param input       源输入流
      * @param source      源套接字
      * @param destination 目标套接字
+     * @param meter       本方向的流量计量，超过配额时限速或结束转发
      * @return 数据转发线程
      */
-    private Runnable createRelayThread(Socket source, Socket destination) {
+    private Runnable createRelayThread(InputStream input, Socket source, Socket destination, TunnelMeter meter) {
         return () -> {
             try {
                 byte[] buffer = new byte[BUFFER_SIZE];
                 int bytesRead;
-                while ((bytesRead = source.getInputStream().read(buffer)) != -1) {
+                while ((bytesRead = input.read(buffer)) != -1) {
                     destination.getOutputStream().write(buffer, 0, bytesRead);
                     destination.getOutputStream().flush();
+                    meter.add(bytesRead);
+                    // 转发线程不在事件循环上，只计费不计入热点统计
+                    meter.commit(null);
+                    if (meter.isExceeded()) {
+                        if (!TrafficAccounting.throttleOnQuota()) {
+                            LOGGER.info("Account over traffic quota, closing tunnel: {}", meter.exceededAccount());
+                            break;
+                        }
+                        Thread.sleep(TunnelMeter.THROTTLE_PAUSE_MILLIS);
+                    }
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             } catch (Exception e) {
                 LOGGER.error("Error relaying data: {}", e.getMessage());
             } finally {
+                meter.close();
                 closeQuietly(source);
                 closeQuietly(destination);
             }
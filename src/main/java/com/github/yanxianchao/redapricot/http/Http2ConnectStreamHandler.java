@@ -0,0 +1,332 @@
+package com.github.yanxianchao.redapricot.http;
+
+import com.github.yanxianchao.redapricot.stats.HeavyHitters;
+import com.github.yanxianchao.redapricot.stats.TrafficAccounting;
+import com.github.yanxianchao.redapricot.stats.TunnelMeter;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.channel.socket.DuplexChannel;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http2.DefaultHttp2DataFrame;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2ResetFrame;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.function.BiFunction;
+
+/**
+ * HTTP/2 CONNECT流处理器
+ * 每个HTTP/2流对应一个上游连接；流的接收窗口只在上游可写时归还，上游的读取只在流可写时进行
+ */
+public class Http2ConnectStreamHandler extends ChannelInboundHandlerAdapter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Http2ConnectStreamHandler.class);
+
+    private final BiFunction<String, Integer, Future<Channel>> connector;
+    private Channel upstream;
+    // 客户端到目标、目标到客户端两个方向的流量计量，上游建立后创建
+    private TunnelMeter meter;
+    private TunnelMeter upstreamMeter;
+
+    public Http2ConnectStreamHandler(BiFunction<String, Integer, Future<Channel>> connector) {
+        this.connector = connector;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof Http2HeadersFrame) {
+            handleHeaders(ctx, (Http2HeadersFrame) msg);
+        } else if (msg instanceof Http2DataFrame) {
+            handleData(ctx, (Http2DataFrame) msg);
+        } else if (msg instanceof Http2ResetFrame) {
+            ReferenceCountUtil.release(msg);
+            ctx.close();
+        } else {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private void handleHeaders(ChannelHandlerContext ctx, Http2HeadersFrame frame) {
+        Http2Headers headers = frame.headers();
+        if (upstream != null || !HttpMethod.CONNECT.asciiName().contentEquals(headers.method())) {
+            respond(ctx, HttpResponseStatus.METHOD_NOT_ALLOWED, true);
+            return;
+        }
+        String[] hostPort = parseAuthority(headers.authority());
+        if (hostPort == null) {
+            respond(ctx, HttpResponseStatus.BAD_REQUEST, true);
+            return;
+        }
+
+        String host = hostPort[0];
+        int port = parsePort(hostPort[1]);
+        if (port < 0) {
+            respond(ctx, HttpResponseStatus.BAD_REQUEST, true);
+            return;
+        }
+        LOGGER.debug("HTTP/2 CONNECT: {}:{}", host, port);
+        String clientKey = HeavyHitters.clientKey(ctx.channel().parent().remoteAddress());
+        String destinationKey = host + ":" + port;
+        HeavyHitters.recordConnect(ctx.executor(), clientKey, destinationKey);
+        // 上游建立前不读取流上的数据，客户端的流窗口也不会归还
+        ctx.channel().config().setAutoRead(false);
+        connector.apply(host, port).addListener((Future<Channel> f) -> ctx.executor().execute(() -> {
+            if (!f.isSuccess()) {
+                LOGGER.warn("HTTP/2 CONNECT连接目标失败: {}:{}", host, port, f.cause());
+                respond(ctx, HttpResponseStatus.BAD_GATEWAY, true);
+                return;
+            }
+            Channel target = f.getNow();
+            if (!ctx.channel().isActive()) {
+                target.close();
+                return;
+            }
+            upstream = target;
+            meter = TunnelMeter.open(clientKey, destinationKey, null, true);
+            upstreamMeter = TunnelMeter.open(clientKey, destinationKey, null, false);
+            target.pipeline().addLast(new UpstreamHandler(ctx.channel(), meter, upstreamMeter));
+            respond(ctx, HttpResponseStatus.OK, false);
+            ctx.channel().config().setAutoRead(true);
+            // 上游处理器就位后再读取目标的数据
+            target.config().setAutoRead(ctx.channel().isWritable());
+        }));
+    }
+
+    private void handleData(ChannelHandlerContext ctx, Http2DataFrame frame) {
+        if (upstream == null || !upstream.isActive()) {
+            frame.release();
+            ctx.close();
+            return;
+        }
+        boolean endStream = frame.isEndStream();
+        if (meter != null) {
+            meter.add(frame.content().readableBytes());
+        }
+        upstream.writeAndFlush(frame.content()).addListener((ChannelFutureListener) f -> {
+            if (!f.isSuccess()) {
+                ctx.close();
+            }
+        });
+        if (endStream && upstream instanceof DuplexChannel) {
+            ((DuplexChannel) upstream).shutdownOutput();
+        }
+        // 上游不可写时停止读取，流窗口随之停止归还
+        if (!upstream.isWritable()) {
+            ctx.channel().config().setAutoRead(false);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        if (meter != null) {
+            meter.commit(ctx.executor());
+            if (meter.isExceeded()) {
+                enforceQuota(ctx);
+            }
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    /**
+     * 超过配额时关闭流和上游，或暂停读取流实现限速；暂停期间流窗口不归还
+     */
+    private void enforceQuota(ChannelHandlerContext ctx) {
+        if (TrafficAccounting.throttleOnQuota()) {
+            Channel stream = ctx.channel();
+            meter.throttle(ctx.executor(), () -> stream.config().setAutoRead(false),
+                    () -> stream.config().setAutoRead(upstream.isWritable()));
+        } else {
+            LOGGER.info("账户超过流量配额，关闭HTTP/2 CONNECT流: {}", meter.exceededAccount());
+            ctx.close();
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (upstream != null && (upstreamMeter == null || !upstreamMeter.isThrottled())) {
+            upstream.config().setAutoRead(ctx.channel().isWritable());
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        closeOnFlush(upstream);
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        if (meter != null) {
+            meter.close();
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        if (cause instanceof IOException) {
+            LOGGER.debug("HTTP/2 CONNECT流异常: {}", cause.getMessage());
+        } else {
+            LOGGER.error("HTTP/2 CONNECT流处理器发生异常", cause);
+        }
+        ctx.close();
+    }
+
+    private static void respond(ChannelHandlerContext ctx, HttpResponseStatus status, boolean endStream) {
+        Http2Headers headers = new DefaultHttp2Headers().status(status.codeAsText());
+        ctx.writeAndFlush(new DefaultHttp2HeadersFrame(headers, endStream));
+    }
+
+    /**
+     * 解析 :authority，支持 host:port 和 [ipv6]:port
+     */
+    private static String[] parseAuthority(CharSequence authority) {
+        if (authority == null) {
+            return null;
+        }
+        String value = authority.toString();
+        int idx = value.lastIndexOf(':');
+        if (idx <= 0 || idx == value.length() - 1) {
+            return null;
+        }
+        String host = value.substring(0, idx);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        return new String[]{host, value.substring(idx + 1)};
+    }
+
+    /**
+     * 解析端口，格式错误或超出范围时返回-1
+     */
+    private static int parsePort(String value) {
+        try {
+            int port = Integer.parseInt(value);
+            return port > 0 && port <= 65535 ? port : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void closeOnFlush(Channel channel) {
+        if (channel != null && channel.isActive()) {
+            channel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    /**
+     * 上游通道处理器，把上游数据作为DATA帧写回HTTP/2流
+     */
+    private static final class UpstreamHandler extends ChannelInboundHandlerAdapter {
+        private final Channel stream;
+        // 流一侧的计量，限速暂停期间不因上游可写而恢复读取流
+        private final TunnelMeter streamMeter;
+        private final TunnelMeter meter;
+        // 上游半关闭后已经发送过END_STREAM
+        private boolean endStreamSent;
+
+        UpstreamHandler(Channel stream, TunnelMeter streamMeter, TunnelMeter meter) {
+            this.stream = stream;
+            this.streamMeter = streamMeter;
+            this.meter = meter;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (!(msg instanceof ByteBuf)) {
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+            if (meter != null) {
+                meter.add(((ByteBuf) msg).readableBytes());
+            }
+            stream.writeAndFlush(new DefaultHttp2DataFrame((ByteBuf) msg));
+            // 流的发送窗口耗尽时停止读取上游
+            if (!stream.isWritable()) {
+                ctx.channel().config().setAutoRead(false);
+            }
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            if (meter != null) {
+                meter.commit(ctx.executor());
+                if (meter.isExceeded()) {
+                    enforceQuota(ctx);
+                }
+            }
+            ctx.fireChannelReadComplete();
+        }
+
+        private void enforceQuota(ChannelHandlerContext ctx) {
+            if (TrafficAccounting.throttleOnQuota()) {
+                Channel channel = ctx.channel();
+                meter.throttle(ctx.executor(), () -> channel.config().setAutoRead(false),
+                        () -> channel.config().setAutoRead(stream.isWritable()));
+            } else {
+                LOGGER.info("账户超过流量配额，关闭HTTP/2 CONNECT流: {}", meter.exceededAccount());
+                stream.close();
+                ctx.close();
+            }
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            if (streamMeter == null || !streamMeter.isThrottled()) {
+                stream.config().setAutoRead(ctx.channel().isWritable());
+            }
+            ctx.fireChannelWritabilityChanged();
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) {
+            if (meter != null) {
+                meter.close();
+            }
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+            if (evt instanceof ChannelInputShutdownEvent) {
+                // 上游发来FIN：用空的END_STREAM帧把半关闭传给客户端，流的另一个方向继续转发
+                if (!endStreamSent && stream.isActive()) {
+                    endStreamSent = true;
+                    stream.writeAndFlush(new DefaultHttp2DataFrame(true));
+                }
+                return;
+            }
+            ctx.fireUserEventTriggered(evt);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if (stream.isActive()) {
+                if (endStreamSent) {
+                    stream.close();
+                } else {
+                    stream.writeAndFlush(new DefaultHttp2DataFrame(true)).addListener(ChannelFutureListener.CLOSE);
+                }
+            }
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            LOGGER.debug("HTTP/2 CONNECT上游异常: {}", cause.getMessage());
+            ctx.close();
+        }
+    }
+}
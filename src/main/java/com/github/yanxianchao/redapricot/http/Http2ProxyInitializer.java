@@ -0,0 +1,60 @@
+package com.github.yanxianchao.redapricot.http;
+
+import com.github.yanxianchao.redapricot.tls.ReloadableSslContext;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.util.concurrent.Future;
+
+import java.util.function.BiFunction;
+
+/**
+ * HTTP/2代理连接初始化器
+ * 支持h2c（prior knowledge）和通过ALPN协商的h2，每个CONNECT流由独立的子通道处理
+ */
+public class Http2ProxyInitializer extends ChannelInitializer<SocketChannel> {
+
+    private static final int MAX_CONCURRENT_STREAMS = 1024;
+    private static final int STREAM_WINDOW = 256 * 1024;
+    // 连接级窗口需要容纳大量并发隧道
+    private static final int CONNECTION_WINDOW = 16 * 1024 * 1024;
+    private static final int DEFAULT_WINDOW = 65535;
+
+    private final ReloadableSslContext sslContext;
+    private final BiFunction<String, Integer, Future<Channel>> connector;
+
+    /**
+     * @param sslContext 为null时使用h2c
+     * @param connector  连接目标地址的方法
+     */
+    public Http2ProxyInitializer(ReloadableSslContext sslContext, BiFunction<String, Integer, Future<Channel>> connector) {
+        this.sslContext = sslContext;
+        this.connector = connector;
+    }
+
+    @Override
+    protected void initChannel(SocketChannel ch) throws Exception {
+        if (sslContext != null) {
+            ch.pipeline().addLast(sslContext.newHandler(ch.alloc()));
+        }
+        Http2FrameCodec codec = Http2FrameCodecBuilder.forServer()
+                .initialSettings(Http2Settings.defaultSettings()
+                        .maxConcurrentStreams(MAX_CONCURRENT_STREAMS)
+                        .initialWindowSize(STREAM_WINDOW))
+                .build();
+        ch.pipeline().addLast(codec);
+        ch.pipeline().addLast(new Http2MultiplexHandler(new ChannelInitializer<Http2StreamChannel>() {
+            @Override
+            protected void initChannel(Http2StreamChannel stream) {
+                stream.pipeline().addLast(new Http2ConnectStreamHandler(connector));
+            }
+        }));
+        codec.connection().local().flowController()
+                .incrementWindowSize(codec.connection().connectionStream(), CONNECTION_WINDOW - DEFAULT_WINDOW);
+    }
+}
@@ -4,9 +4,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Arrays;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -21,7 +24,12 @@ public class HttpProxyServer {
     private static final Logger LOGGER = LoggerFactory.getLogger(HttpProxyServer.class);
 
     private static final int DEFAULT_PORT = 443;
+    // 响应缓存目录，未配置时不启用缓存
+    private static final String CACHE_DIR = System.getProperty("redapricot.http.cache.dir");
+    private static final long CACHE_DISK_MB = Long.getLong("redapricot.http.cache.diskMb", 1024);
+    private static final int CACHE_MAX_ENTRIES = Integer.getInteger("redapricot.http.cache.maxEntries", 100000);
     private volatile ServerSocket serverSocket;
+    private volatile HttpResponseCache responseCache;
 
     private static final ThreadPoolExecutor bossThreadPool =
             new ThreadPoolExecutor(1, 1, 0L, MILLISECONDS, new LinkedBlockingQueue<Runnable>());
@@ -41,7 +49,11 @@ public class HttpProxyServer {
      */
     public void startServer(int port) throws IOException {
         if (serverSocket != null) return;
-        serverSocket = new ServerSocket(port);
+        if (CACHE_DIR != null) {
+            responseCache = new HttpResponseCache(new File(CACHE_DIR), CACHE_DISK_MB * 1024 * 1024, CACHE_MAX_ENTRIES);
+        }
+        // 通过ServerSocketChannel创建，使接受的套接字带有通道，缓存命中时可以零拷贝发送
+        serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(port)).socket();
         LOGGER.info("HTTP Proxy server started on port {}", port);
         new Thread(()->{
             try {
@@ -49,7 +61,7 @@ public class HttpProxyServer {
                     Socket clientSocket = serverSocket.accept();
                     //clientSocket.getOutputStream().write("HTTP/1.1 200 OK\r\n\r\n".getBytes(StandardCharsets.UTF_8));
                      //为每个客户端连接创建一个新的处理器
-                    ConnectionHandler handler = new ClientConnectionHandler(clientSocket,workerThreadPool);
+                    ConnectionHandler handler = new ClientConnectionHandler(clientSocket, workerThreadPool, responseCache);
                     bossThreadPool.execute(handler);
                 }
             } catch (IOException e) {
@@ -0,0 +1,294 @@
+package com.github.yanxianchao.redapricot.http;
+
+import io.netty.util.internal.PlatformDependent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP响应缓存
+ * 响应按追加方式写入内存映射的分段文件，内存中只保留紧凑索引；
+ * 索引按LRU淘汰，磁盘按分段循环淘汰，命中时通过FileChannel.transferTo零拷贝发送
+ */
+public class HttpResponseCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HttpResponseCache.class);
+
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    // 单个可缓存对象的最大长度（响应头+响应体）
+    static final int MAX_OBJECT_SIZE = 8 * 1024 * 1024;
+
+    private final File directory;
+    private final int maxSegments;
+    private final int maxEntries;
+
+    // 按访问顺序排列的索引，所有访问在this上同步
+    private final LinkedHashMap<String, Entry> index = new LinkedHashMap<>(1024, 0.75f, true);
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private Segment current;
+    private int nextSegmentId;
+
+    // 同一URL的并发未命中合并为一次回源
+    private final ConcurrentHashMap<String, CompletableFuture<Entry>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    /**
+     * 缓存项的索引信息
+     */
+    static final class Entry {
+        final Segment segment;
+        final int offset;
+        final int length;
+        final String etag;
+        final String lastModified;
+        // 写入时的新鲜期，重新验证的304响应没有给出有效期时沿用
+        final long lifetime;
+        volatile long expiresAt;
+
+        Entry(Segment segment, int offset, int length, String etag, String lastModified, long expiresAt) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.lifetime = Math.max(0, expiresAt - System.currentTimeMillis());
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isFresh() {
+            return expiresAt > System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * 内存映射的分段文件，引用计数归零后解除映射、关闭并删除
+     */
+    static final class Segment {
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        final AtomicInteger refCnt = new AtomicInteger(1);
+        long liveBytes;
+
+        Segment(File file) throws IOException {
+            this.file = file;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(SEGMENT_SIZE);
+            }
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        }
+
+        boolean tryRetain() {
+            for (;;) {
+                int cnt = refCnt.get();
+                if (cnt == 0) {
+                    return false;
+                }
+                if (refCnt.compareAndSet(cnt, cnt + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (refCnt.decrementAndGet() == 0) {
+                // 先解除映射，否则文件删除后磁盘空间要等到映射被GC回收才释放
+                PlatformDependent.freeDirectBuffer(buffer);
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    LOGGER.warn("Failed to close cache segment: {}", file, e);
+                }
+                if (!file.delete()) {
+                    LOGGER.warn("Failed to delete cache segment: {}", file);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param directory 分段文件目录，启动时清空
+     * @param diskBudget 磁盘预算（字节）
+     * @param maxEntries 内存索引的最大条目数
+     */
+    public HttpResponseCache(File directory, long diskBudget, int maxEntries) throws IOException {
+        this.directory = directory;
+        this.maxSegments = (int) Math.max(2, diskBudget / SEGMENT_SIZE);
+        this.maxEntries = maxEntries;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create cache directory: " + directory);
+        }
+        File[] stale = directory.listFiles((dir, name) -> name.startsWith("segment-"));
+        if (stale != null) {
+            for (File file : stale) {
+                file.delete();
+            }
+        }
+        this.current = newSegment();
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "http-cache-report");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> LOGGER.info(report()), 1, 1, TimeUnit.MINUTES);
+        LOGGER.info("HTTP response cache enabled: dir={}, segments={}, maxEntries={}", directory, maxSegments, maxEntries);
+    }
+
+    /**
+     * 查找缓存项，过期的缓存项也会返回，用于条件请求
+     */
+    synchronized Entry get(String key) {
+        return index.get(key);
+    }
+
+    /**
+     * 写入一个完整响应（响应头+响应体）
+     */
+    synchronized Entry put(String key, byte[] head, byte[] body, int bodyLength, String etag, String lastModified, long expiresAt)
+            throws IOException {
+        int length = head.length + bodyLength;
+        if (length > MAX_OBJECT_SIZE) {
+            return null;
+        }
+        if (current.buffer.position() + length > SEGMENT_SIZE) {
+            current = newSegment();
+        }
+        int offset = current.buffer.position();
+        current.buffer.put(head);
+        current.buffer.put(body, 0, bodyLength);
+        current.liveBytes += length;
+
+        Entry entry = new Entry(current, offset, length, etag, lastModified, expiresAt);
+        Entry previous = index.put(key, entry);
+        if (previous != null) {
+            discard(previous);
+        }
+        while (index.size() > maxEntries) {
+            Iterator<Entry> eldest = index.values().iterator();
+            discard(eldest.next());
+            eldest.remove();
+        }
+        return entry;
+    }
+
+    /**
+     * 移除仍指向该缓存项的索引
+     */
+    synchronized void remove(String key, Entry entry) {
+        if (index.remove(key, entry)) {
+            discard(entry);
+        }
+    }
+
+    /**
+     * 缓存项所在分段是否还未被淘汰
+     */
+    boolean isLive(Entry entry) {
+        return entry.segment.refCnt.get() > 0;
+    }
+
+    /**
+     * 通过零拷贝把缓存项发送到目标通道
+     *
+     * @return 缓存项所在分段已被淘汰时返回false
+     */
+    boolean serve(Entry entry, WritableByteChannel target) throws IOException {
+        if (!entry.segment.tryRetain()) {
+            return false;
+        }
+        try {
+            long position = entry.offset;
+            long end = (long) entry.offset + entry.length;
+            while (position < end) {
+                position += entry.segment.channel.transferTo(position, end - position, target);
+            }
+            bytesSaved.addAndGet(entry.length);
+            return true;
+        } finally {
+            entry.segment.release();
+        }
+    }
+
+    /**
+     * 尝试成为某个URL的回源者
+     *
+     * @return 已有回源在进行时返回其结果Future，否则返回null表示由调用方回源
+     */
+    CompletableFuture<Entry> joinInFlight(String key, CompletableFuture<Entry> mine) {
+        return inFlight.putIfAbsent(key, mine);
+    }
+
+    void completeInFlight(String key, CompletableFuture<Entry> mine, Entry entry) {
+        inFlight.remove(key, mine);
+        mine.complete(entry);
+    }
+
+    void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    void recordRevalidation() {
+        revalidations.incrementAndGet();
+    }
+
+    /**
+     * 命中率和节省的回源字节数
+     */
+    public String report() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return String.format("HTTP cache: hits=%d misses=%d revalidated=%d hitRatio=%.2f%% bytesSaved=%d entries=%d",
+                hitCount, misses.get(), revalidations.get(), total == 0 ? 0.0 : hitCount * 100.0 / total,
+                bytesSaved.get(), size());
+    }
+
+    private synchronized int size() {
+        return index.size();
+    }
+
+    private void discard(Entry entry) {
+        entry.segment.liveBytes -= entry.length;
+        if (entry.segment != current && entry.segment.liveBytes <= 0 && segments.remove(entry.segment)) {
+            entry.segment.release();
+        }
+    }
+
+    private Segment newSegment() throws IOException {
+        // 超过磁盘预算时淘汰最旧的分段及其中的所有缓存项
+        while (segments.size() >= maxSegments) {
+            Segment oldest = segments.poll();
+            index.values().removeIf(e -> e.segment == oldest);
+            oldest.release();
+        }
+        Segment segment = new Segment(new File(directory, "segment-" + (nextSegmentId++) + ".dat"));
+        segments.add(segment);
+        return segment;
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.yanxianchao.redapricot.loop;
+
+import io.netty.channel.DefaultSelectStrategyFactory;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorChooserFactory;
+
+import java.nio.channels.spi.SelectorProvider;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 负载感知的事件循环选择器
+ * 随机取两个事件循环，把新通道分配给负载分数较低的一个，避免大流量隧道集中在同一个事件循环上
+ */
+public final class LoadAwareChooserFactory implements EventExecutorChooserFactory {
+
+    public static final LoadAwareChooserFactory INSTANCE = new LoadAwareChooserFactory();
+
+    // 是否启用负载感知分配（-Dredapricot.loop.loadAware=true）
+    private static final boolean ENABLED = Boolean.getBoolean("redapricot.loop.loadAware");
+
+    private LoadAwareChooserFactory() {
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * 创建NIO事件循环组，启用时使用负载感知选择器
+     */
+    public static EventLoopGroup nioGroup(int nThreads) {
+        if (!ENABLED) {
+            return new NioEventLoopGroup(nThreads);
+        }
+        LoopBalancer.start();
+        return new NioEventLoopGroup(nThreads, (Executor) null, INSTANCE,
+                SelectorProvider.provider(), DefaultSelectStrategyFactory.INSTANCE);
+    }
+
+    /**
+     * 创建epoll事件循环组，启用时使用负载感知选择器
+     */
+    public static EventLoopGroup epollGroup(int nThreads) {
+        if (!ENABLED) {
+            return new EpollEventLoopGroup(nThreads);
+        }
+        LoopBalancer.start();
+        return new EpollEventLoopGroup(nThreads, (Executor) null, INSTANCE, DefaultSelectStrategyFactory.INSTANCE);
+    }
+
+    @Override
+    public EventExecutorChooser newChooser(EventExecutor[] executors) {
+        LoopLoad[] group = LoopLoad.register(executors);
+        if (group.length == 1) {
+            return () -> executors[0];
+        }
+        return () -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(group.length);
+            int second = random.nextInt(group.length - 1);
+            if (second >= first) {
+                second++;
+            }
+            return group[first].score() <= group[second].score() ? executors[first] : executors[second];
+        };
+    }
+}
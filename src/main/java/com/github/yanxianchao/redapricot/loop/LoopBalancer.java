@@ -0,0 +1,315 @@
+package com.github.yanxianchao.redapricot.loop;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.EventLoop;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 事件循环负载采样和大流量隧道迁移
+ * 每秒更新各事件循环的字节速率；启用迁移时，定期把最热事件循环上最大的长连接隧道
+ * 的两端一起重新注册到同组负载最低的事件循环上
+ */
+public final class LoopBalancer {
+    private static final Logger logger = LoggerFactory.getLogger(LoopBalancer.class);
+
+    // 隧道迁移周期，0表示不迁移（-Dredapricot.loop.rebalanceSeconds=10）
+    private static final long REBALANCE_SECONDS = Long.getLong("redapricot.loop.rebalanceSeconds", 0);
+    // 最热事件循环的速率达到该值且超过最冷事件循环的两倍时才迁移
+    private static final long HOT_BYTES_PER_SECOND = Long.getLong("redapricot.loop.hotBytesPerSecond", 16 * 1024 * 1024);
+    private static final int HOT_RATIO = 2;
+
+    private static final AttributeKey<Tunnel> TUNNEL = AttributeKey.valueOf(LoopBalancer.class, "TUNNEL");
+    private static final AttributeKey<Boolean> MIGRATING = AttributeKey.valueOf(LoopBalancer.class, "MIGRATING");
+    // 迁移结束后要恢复的自动读取状态
+    private static final AttributeKey<Boolean> AUTO_READ_AFTER_MIGRATION =
+            AttributeKey.valueOf(LoopBalancer.class, "AUTO_READ_AFTER_MIGRATION");
+    // 等待隧道两端发送缓冲写空的检查间隔和超时
+    private static final long QUIESCE_POLL_MILLIS = 10;
+    private static final long QUIESCE_TIMEOUT_MILLIS = 2000;
+
+    private static final Set<Tunnel> tunnels = ConcurrentHashMap.newKeySet();
+    private static volatile ScheduledExecutorService samplerExecutor;
+
+    /**
+     * 一条隧道：客户端通道和上游通道
+     */
+    public static final class Tunnel {
+        final Channel client;
+        final Channel upstream;
+        final long createdAt = System.currentTimeMillis();
+        private final LongAdder bytes = new LongAdder();
+        volatile long bytesPerSecond;
+
+        Tunnel(Channel client, Channel upstream) {
+            this.client = client;
+            this.upstream = upstream;
+        }
+
+        public void addBytes(long n) {
+            bytes.add(n);
+        }
+
+        void sample(double seconds) {
+            long rate = (long) (bytes.sumThenReset() / seconds);
+            bytesPerSecond = (bytesPerSecond + rate) / 2;
+        }
+    }
+
+    private LoopBalancer() {
+    }
+
+    /**
+     * 启动负载采样线程，由负载感知的事件循环组创建时调用
+     */
+    static synchronized void start() {
+        if (samplerExecutor != null) {
+            return;
+        }
+        samplerExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "loop-balancer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        samplerExecutor.scheduleAtFixedRate(LoopBalancer::sample, 1, 1, TimeUnit.SECONDS);
+        if (REBALANCE_SECONDS > 0) {
+            samplerExecutor.scheduleWithFixedDelay(LoopBalancer::rebalance, REBALANCE_SECONDS, REBALANCE_SECONDS, TimeUnit.SECONDS);
+        }
+        logger.info("负载感知事件循环已启用，隧道迁移周期: {}s", REBALANCE_SECONDS);
+    }
+
+    /**
+     * 是否跟踪隧道用于迁移
+     */
+    public static boolean isEnabled() {
+        return REBALANCE_SECONDS > 0 && LoadAwareChooserFactory.isEnabled();
+    }
+
+    /**
+     * 登记一条隧道，两端的中继处理器调用时返回同一个对象
+     */
+    public static Tunnel track(Channel client, Channel upstream) {
+        Tunnel tunnel = new Tunnel(client, upstream);
+        Tunnel existing = client.attr(TUNNEL).setIfAbsent(tunnel);
+        if (existing != null) {
+            return existing;
+        }
+        tunnels.add(tunnel);
+        return tunnel;
+    }
+
+    public static void untrack(Tunnel tunnel) {
+        tunnels.remove(tunnel);
+    }
+
+    /**
+     * 通道是否正在迁移，迁移时的注销事件不应关闭隧道
+     */
+    public static boolean isMigrating(Channel channel) {
+        return Boolean.TRUE.equals(channel.attr(MIGRATING).get());
+    }
+
+    private static void sample() {
+        try {
+            for (LoopLoad[] group : LoopLoad.groups()) {
+                for (LoopLoad load : group) {
+                    load.sample(1);
+                }
+            }
+            for (Tunnel tunnel : tunnels) {
+                tunnel.sample(1);
+            }
+        } catch (Exception e) {
+            logger.error("事件循环负载采样时发生错误", e);
+        }
+    }
+
+    private static void rebalance() {
+        try {
+            for (LoopLoad[] group : LoopLoad.groups()) {
+                rebalance(group);
+            }
+        } catch (Exception e) {
+            logger.error("迁移隧道时发生错误", e);
+        }
+    }
+
+    /**
+     * 每个周期每组最多迁移一条隧道，避免来回振荡
+     */
+    private static void rebalance(LoopLoad[] group) {
+        LoopLoad hottest = group[0];
+        LoopLoad coolest = group[0];
+        for (LoopLoad load : group) {
+            if (load.bytesPerSecond() > hottest.bytesPerSecond()) {
+                hottest = load;
+            }
+            if (load.score() < coolest.score()) {
+                coolest = load;
+            }
+        }
+        long gap = hottest.bytesPerSecond() - coolest.bytesPerSecond();
+        if (hottest == coolest || hottest.bytesPerSecond() < HOT_BYTES_PER_SECOND
+                || hottest.bytesPerSecond() < HOT_RATIO * coolest.bytesPerSecond()) {
+            return;
+        }
+
+        long minAge = TimeUnit.SECONDS.toMillis(REBALANCE_SECONDS);
+        long now = System.currentTimeMillis();
+        EventLoop target = (EventLoop) coolest.executor;
+        Tunnel candidate = null;
+        for (Tunnel tunnel : tunnels) {
+            // 只迁移存活超过一个周期、迁移后能缩小差距、两端都能注册到目标事件循环的隧道
+            if (tunnel.client.eventLoop() != hottest.executor || now - tunnel.createdAt < minAge
+                    || tunnel.bytesPerSecond >= gap
+                    || tunnel.client.eventLoop().getClass() != target.getClass()
+                    || tunnel.upstream.eventLoop().getClass() != target.getClass()) {
+                continue;
+            }
+            if (candidate == null || tunnel.bytesPerSecond > candidate.bytesPerSecond) {
+                candidate = tunnel;
+            }
+        }
+        if (candidate != null) {
+            migrate(candidate, target);
+        }
+    }
+
+    /**
+     * 迁移一条隧道：在两端各自的事件循环上停止读取，等两端的发送缓冲都写空后一起重新注册，
+     * 完成后恢复两端原来的自动读取状态（迁移期间通过{@link #setAutoRead}请求的变更在此时生效）
+     */
+    private static void migrate(Tunnel tunnel, EventLoop target) {
+        Channel client = tunnel.client;
+        Channel upstream = tunnel.upstream;
+        client.eventLoop().execute(() -> {
+            if (!client.isActive() || !upstream.isActive() || isMigrating(client)) {
+                return;
+            }
+            logger.info("迁移隧道到负载较低的事件循环: {} <-> {}, {} B/s",
+                    client.remoteAddress(), upstream.remoteAddress(), tunnel.bytesPerSecond);
+            pause(client);
+            upstream.eventLoop().execute(() -> {
+                pause(upstream);
+                awaitQuiescent(client, upstream, target, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(QUIESCE_TIMEOUT_MILLIS));
+            });
+        });
+    }
+
+    /**
+     * 在通道自己的事件循环上停止读取，记录原来的自动读取状态
+     */
+    private static void pause(Channel channel) {
+        channel.attr(AUTO_READ_AFTER_MIGRATION).set(channel.config().isAutoRead());
+        channel.attr(MIGRATING).set(Boolean.TRUE);
+        channel.config().setAutoRead(false);
+    }
+
+    /**
+     * 依次在两端的事件循环上检查发送缓冲，两端都已写空时开始迁移；超时或隧道关闭时放弃本次迁移
+     * 两端都已停止读取，不会再产生新的转发写入，之前提交到对端事件循环的写入任务排在检查之前
+     */
+    private static void awaitQuiescent(Channel client, Channel upstream, EventLoop target, long deadline) {
+        client.eventLoop().execute(() -> {
+            boolean clientQuiescent = !hasPendingWrites(client);
+            upstream.eventLoop().execute(() -> {
+                if (clientQuiescent && !hasPendingWrites(upstream)) {
+                    reregisterBoth(client, upstream, target);
+                } else if (!client.isActive() || !upstream.isActive() || System.nanoTime() - deadline > 0) {
+                    logger.debug("隧道未能在超时内静止，放弃本次迁移: {}", client.remoteAddress());
+                    resume(client);
+                    resume(upstream);
+                } else {
+                    upstream.eventLoop().schedule(() -> awaitQuiescent(client, upstream, target, deadline),
+                            QUIESCE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            });
+        });
+    }
+
+    private static boolean hasPendingWrites(Channel channel) {
+        ChannelOutboundBuffer buffer = channel.unsafe().outboundBuffer();
+        return buffer != null && buffer.totalPendingWriteBytes() > 0;
+    }
+
+    private static void reregisterBoth(Channel client, Channel upstream, EventLoop target) {
+        reregister(client, target).addListener(clientFuture ->
+                reregister(upstream, target).addListener(upstreamFuture -> {
+                    if (clientFuture.isSuccess() && upstreamFuture.isSuccess()) {
+                        resume(client);
+                        resume(upstream);
+                    } else {
+                        logger.warn("隧道迁移失败，关闭隧道: {}", client.remoteAddress());
+                        client.attr(MIGRATING).set(null);
+                        upstream.attr(MIGRATING).set(null);
+                        client.close();
+                        upstream.close();
+                    }
+                }));
+    }
+
+    /**
+     * 在通道当前的事件循环上结束迁移状态并恢复自动读取
+     */
+    private static void resume(Channel channel) {
+        channel.eventLoop().execute(() -> {
+            channel.attr(MIGRATING).set(null);
+            Boolean autoRead = channel.attr(AUTO_READ_AFTER_MIGRATION).getAndSet(null);
+            if (autoRead != null) {
+                channel.config().setAutoRead(autoRead);
+            }
+        });
+    }
+
+    /**
+     * 设置可能被迁移的通道的自动读取，在通道的事件循环上执行；通道迁移期间只记录，迁移结束时生效
+     */
+    public static void setAutoRead(Channel channel, boolean autoRead) {
+        if (!isEnabled()) {
+            channel.config().setAutoRead(autoRead);
+            return;
+        }
+        EventLoop loop = channel.eventLoop();
+        if (!loop.inEventLoop()) {
+            loop.execute(() -> setAutoRead(channel, autoRead));
+            return;
+        }
+        if (isMigrating(channel)) {
+            channel.attr(AUTO_READ_AFTER_MIGRATION).set(autoRead);
+        } else {
+            channel.config().setAutoRead(autoRead);
+        }
+    }
+
+    private static Future<Void> reregister(Channel channel, EventLoop target) {
+        Promise<Void> promise = target.newPromise();
+        if (channel.eventLoop() == target) {
+            return promise.setSuccess(null);
+        }
+        channel.deregister().addListener(deregistered -> {
+            if (!deregistered.isSuccess()) {
+                promise.tryFailure(deregistered.cause());
+                return;
+            }
+            target.register(channel).addListener(registered -> {
+                if (registered.isSuccess()) {
+                    promise.trySuccess(null);
+                } else {
+                    promise.tryFailure(registered.cause());
+                }
+            });
+        });
+        return promise;
+    }
+}
@@ -0,0 +1,86 @@
+package com.github.yanxianchao.redapricot.loop;
+
+import io.netty.channel.SingleThreadEventLoop;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 单个事件循环的负载指标
+ * 负载分数由最近的中继字节速率、待执行任务数和已注册通道数组成
+ */
+public final class LoopLoad {
+
+    // 一个待执行任务、一个已注册通道折算的字节速率，使刚建立还没有流量的通道也参与负载
+    private static final long TASK_WEIGHT = 64 * 1024;
+    private static final long CHANNEL_WEIGHT = 16 * 1024;
+
+    private static final ConcurrentHashMap<EventExecutor, LoopLoad> loads = new ConcurrentHashMap<>();
+    private static final List<LoopLoad[]> groups = new CopyOnWriteArrayList<>();
+
+    final EventExecutor executor;
+    private final LongAdder bytes = new LongAdder();
+    private volatile long bytesPerSecond;
+
+    private LoopLoad(EventExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * 为一个事件循环组的所有事件循环创建负载指标
+     */
+    static LoopLoad[] register(EventExecutor[] executors) {
+        LoopLoad[] group = new LoopLoad[executors.length];
+        for (int i = 0; i < executors.length; i++) {
+            group[i] = new LoopLoad(executors[i]);
+            loads.put(executors[i], group[i]);
+        }
+        groups.add(group);
+        return group;
+    }
+
+    /**
+     * 查找事件循环的负载指标，不是负载感知的事件循环时返回null
+     */
+    public static LoopLoad of(EventExecutor executor) {
+        return loads.get(executor);
+    }
+
+    static List<LoopLoad[]> groups() {
+        return groups;
+    }
+
+    /**
+     * 记录在该事件循环上中继的字节数
+     */
+    public void recordBytes(long n) {
+        bytes.add(n);
+    }
+
+    public long bytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * 按采样周期更新字节速率，新旧各占一半
+     */
+    void sample(double seconds) {
+        long rate = (long) (bytes.sumThenReset() / seconds);
+        bytesPerSecond = (bytesPerSecond + rate) / 2;
+    }
+
+    long score() {
+        long score = bytesPerSecond;
+        if (executor instanceof SingleThreadEventExecutor) {
+            score += ((SingleThreadEventExecutor) executor).pendingTasks() * TASK_WEIGHT;
+        }
+        if (executor instanceof SingleThreadEventLoop) {
+            score += Math.max(0, ((SingleThreadEventLoop) executor).registeredChannels()) * CHANNEL_WEIGHT;
+        }
+        return score;
+    }
+}
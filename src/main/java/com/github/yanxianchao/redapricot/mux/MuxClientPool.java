@@ -0,0 +1,129 @@
+package com.github.yanxianchao.redapricot.mux;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 多路复用客户端连接池
+ * 与对端节点保持少量长连接，新流打开在活跃流最少的连接上，断开的连接在下次使用时重连
+ */
+public class MuxClientPool {
+    private static final Logger logger = LoggerFactory.getLogger(MuxClientPool.class);
+
+    private final String remoteHost;
+    private final int remotePort;
+    private final EventLoopGroup eventLoopGroup;
+    private final Future<MuxSession>[] sessions;
+
+    @SuppressWarnings("unchecked")
+    public MuxClientPool(String remoteHost, int remotePort, int connections) {
+        this.remoteHost = remoteHost;
+        this.remotePort = remotePort;
+        this.eventLoopGroup = new NioEventLoopGroup(connections);
+        this.sessions = new Future[connections];
+    }
+
+    /**
+     * 预先建立所有长连接
+     */
+    public void start() {
+        logger.info("多路复用客户端连接对端节点: {}:{}, 连接数: {}", remoteHost, remotePort, sessions.length);
+        synchronized (sessions) {
+            for (int i = 0; i < sessions.length; i++) {
+                sessions[i] = connect();
+            }
+        }
+    }
+
+    /**
+     * 在活跃流最少的连接上打开一条到目标地址的流
+     */
+    public Future<MuxStream> openStream(String host, int port) {
+        Future<MuxSession> sessionFuture = selectSession();
+        if (sessionFuture.isSuccess()) {
+            return sessionFuture.getNow().openStream(host, port);
+        }
+
+        Promise<MuxStream> promise = eventLoopGroup.next().newPromise();
+        sessionFuture.addListener((Future<MuxSession> f) -> {
+            if (f.isSuccess()) {
+                f.getNow().openStream(host, port).addListener((Future<MuxStream> streamFuture) -> {
+                    if (streamFuture.isSuccess()) {
+                        promise.trySuccess(streamFuture.getNow());
+                    } else {
+                        promise.tryFailure(streamFuture.cause());
+                    }
+                });
+            } else {
+                promise.tryFailure(f.cause());
+            }
+        });
+        return promise;
+    }
+
+    private Future<MuxSession> selectSession() {
+        synchronized (sessions) {
+            int best = -1;
+            int bestStreams = Integer.MAX_VALUE;
+            for (int i = 0; i < sessions.length; i++) {
+                Future<MuxSession> future = sessions[i];
+                if (future == null || (future.isDone() && (!future.isSuccess() || !future.getNow().isActive()))) {
+                    // 断开或失败的连接重新建立
+                    sessions[i] = future = connect();
+                }
+                if (future.isSuccess() && future.getNow().activeStreams() < bestStreams) {
+                    best = i;
+                    bestStreams = future.getNow().activeStreams();
+                }
+            }
+            // 没有已建立的连接时使用第一个正在建立的连接
+            return sessions[best >= 0 ? best : 0];
+        }
+    }
+
+    private Future<MuxSession> connect() {
+        Promise<MuxSession> promise = eventLoopGroup.next().newPromise();
+        MuxSession session = new MuxSession(null);
+        Bootstrap bootstrap = new Bootstrap();
+        bootstrap.group(eventLoopGroup)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.SO_RCVBUF, 1024 * 1024)
+                .option(ChannelOption.SO_SNDBUF, 1024 * 1024)
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                        new io.netty.channel.WriteBufferWaterMark(512 * 1024, 2 * 1024 * 1024))
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(MuxFrame.newDecoder());
+                        ch.pipeline().addLast(session);
+                    }
+                });
+        bootstrap.connect(remoteHost, remotePort).addListener((ChannelFuture f) -> {
+            if (f.isSuccess()) {
+                logger.info("多路复用连接已建立: {}", f.channel().remoteAddress());
+                promise.setSuccess(session);
+            } else {
+                logger.warn("多路复用连接失败: {}:{}", remoteHost, remotePort, f.cause());
+                promise.setFailure(f.cause());
+            }
+        });
+        return promise;
+    }
+
+    public void shutdown() {
+        eventLoopGroup.shutdownGracefully();
+    }
+}
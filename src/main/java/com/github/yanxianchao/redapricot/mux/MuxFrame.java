@@ -0,0 +1,38 @@
+package com.github.yanxianchao.redapricot.mux;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+
+/**
+ * 多路复用帧格式
+ * TYPE(1) STREAM_ID(4) LENGTH(4) PAYLOAD(LENGTH)
+ */
+final class MuxFrame {
+
+    static final int HEADER_LENGTH = 9;
+    static final int MAX_PAYLOAD = 16 * 1024;
+
+    // 打开流：HOST_LEN(1) HOST PORT(2)
+    static final byte OPEN = 1;
+    // 打开结果：STATUS(1)，0表示成功
+    static final byte OPEN_ACK = 2;
+    static final byte DATA = 3;
+    // 窗口更新：INCREMENT(4)
+    static final byte WINDOW_UPDATE = 4;
+    static final byte CLOSE = 5;
+
+    private MuxFrame() {
+    }
+
+    static ByteBuf header(ByteBufAllocator alloc, byte type, int streamId, int length) {
+        return alloc.buffer(HEADER_LENGTH)
+                .writeByte(type)
+                .writeInt(streamId)
+                .writeInt(length);
+    }
+
+    static LengthFieldBasedFrameDecoder newDecoder() {
+        return new LengthFieldBasedFrameDecoder(HEADER_LENGTH + MAX_PAYLOAD, 5, 4, 0, 0);
+    }
+}
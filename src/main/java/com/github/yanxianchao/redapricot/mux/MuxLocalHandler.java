@@ -0,0 +1,89 @@
+package com.github.yanxianchao.redapricot.mux;
+
+import com.github.yanxianchao.redapricot.stats.TrafficAccounting;
+import com.github.yanxianchao.redapricot.stats.TunnelMeter;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * 本地通道中继处理器
+ * 把本地通道读到的数据写入多路复用流，本地通道关闭时关闭流
+ */
+final class MuxLocalHandler extends ChannelInboundHandlerAdapter {
+    private static final Logger logger = LoggerFactory.getLogger(MuxLocalHandler.class);
+
+    private final MuxStream stream;
+    private final TunnelMeter meter;
+
+    MuxLocalHandler(MuxStream stream) {
+        this.stream = stream;
+        this.meter = stream.outboundMeter;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof ByteBuf) {
+            if (meter != null) {
+                meter.add(((ByteBuf) msg).readableBytes());
+            }
+            stream.write((ByteBuf) msg);
+        } else {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        if (meter != null) {
+            meter.commit(ctx.executor());
+            if (meter.isExceeded()) {
+                enforceQuota(ctx);
+            }
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    /**
+     * 超过配额时关闭本地通道（随之关闭流），或暂停读取实现限速；恢复时仍服从流的发送窗口
+     */
+    private void enforceQuota(ChannelHandlerContext ctx) {
+        if (TrafficAccounting.throttleOnQuota()) {
+            Channel channel = ctx.channel();
+            meter.throttle(ctx.executor(), () -> channel.config().setAutoRead(false),
+                    () -> stream.session.resumeLocalRead(stream));
+        } else {
+            logger.info("账户超过流量配额，关闭多路复用流: {}", meter.exceededAccount());
+            ctx.close();
+        }
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        if (meter != null) {
+            meter.close();
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        stream.close();
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        if (cause instanceof IOException) {
+            logger.debug("多路复用本地通道异常: {}", cause.getMessage());
+        } else {
+            logger.error("多路复用本地通道发生异常", cause);
+        }
+        ctx.close();
+    }
+}
@@ -0,0 +1,458 @@
+package com.github.yanxianchao.redapricot.mux;
+
+import com.github.yanxianchao.redapricot.stats.TrafficAccounting;
+import com.github.yanxianchao.redapricot.stats.TunnelMeter;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.function.BiFunction;
+
+/**
+ * 多路复用会话
+ * 一条节点间长连接上承载多条逻辑流，提供按流的流量控制；控制帧和小流的数据帧优先发送，
+ * 但流的关闭帧不会越过该流仍在排队的数据帧
+ * 所有状态只在会话通道的事件循环上访问
+ */
+public class MuxSession extends ChannelInboundHandlerAdapter {
+    private static final Logger logger = LoggerFactory.getLogger(MuxSession.class);
+
+    static final int INITIAL_WINDOW = 256 * 1024;
+    static final int WINDOW_UPDATE_THRESHOLD = INITIAL_WINDOW / 4;
+    // 已发送字节数低于该值的流视为小流，数据帧优先发送
+    static final long SMALL_STREAM_BYTES = 64 * 1024;
+
+    private static final byte STATUS_SUCCESS = 0;
+    private static final byte STATUS_FAILURE = 1;
+
+    /**
+     * 待发送的帧
+     *
+     * @param stream 普通队列中的数据帧所属的流，其他帧为null
+     */
+    private record PendingFrame(ByteBuf header, ByteBuf payload, MuxStream stream) {
+    }
+
+    // 服务端用于连接目标地址，客户端为null
+    private final BiFunction<String, Integer, Future<Channel>> connector;
+    private final IntObjectMap<MuxStream> streams = new IntObjectHashMap<>();
+    private final ArrayDeque<PendingFrame> urgentFrames = new ArrayDeque<>();
+    private final ArrayDeque<PendingFrame> bulkFrames = new ArrayDeque<>();
+    private volatile int activeStreams;
+    private int nextStreamId = 1;
+    private Channel channel;
+
+    /**
+     * @param connector 服务端连接目标地址的方法，客户端传null
+     */
+    public MuxSession(BiFunction<String, Integer, Future<Channel>> connector) {
+        this.connector = connector;
+    }
+
+    /**
+     * 服务端多路复用连接的子通道初始化器
+     */
+    public static ChannelInitializer<Channel> serverInitializer(BiFunction<String, Integer, Future<Channel>> connector) {
+        return new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                ch.pipeline().addLast(MuxFrame.newDecoder());
+                ch.pipeline().addLast(new MuxSession(connector));
+            }
+        };
+    }
+
+    public boolean isActive() {
+        return channel != null && channel.isActive();
+    }
+
+    public int activeStreams() {
+        return activeStreams;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        channel = ctx.channel();
+    }
+
+    /**
+     * 客户端打开一条到目标地址的流，对端连接目标成功后完成
+     */
+    public Future<MuxStream> openStream(String host, int port) {
+        Promise<MuxStream> promise = channel.eventLoop().newPromise();
+        execute(() -> {
+            if (!channel.isActive()) {
+                promise.setFailure(new ClosedChannelException());
+                return;
+            }
+            MuxStream stream = new MuxStream(nextStreamId, this);
+            nextStreamId += 2;
+            stream.openPromise = promise;
+            streams.put(stream.id, stream);
+            activeStreams++;
+
+            byte[] hostBytes = host.getBytes(StandardCharsets.US_ASCII);
+            ByteBuf payload = channel.alloc().buffer(3 + hostBytes.length)
+                    .writeByte(hostBytes.length)
+                    .writeBytes(hostBytes)
+                    .writeShort(port);
+            enqueue(MuxFrame.header(channel.alloc(), MuxFrame.OPEN, stream.id, payload.readableBytes()), payload, true);
+        });
+        return promise;
+    }
+
+    void attach(MuxStream stream, Channel localChannel) {
+        localChannel.pipeline().addLast(new MuxLocalHandler(stream));
+        execute(() -> {
+            if (stream.closed) {
+                closeOnFlush(localChannel);
+                return;
+            }
+            stream.localChannel = localChannel;
+            // 目标连接在中继处理器就位前关闭了自动读取，这里按流的发送窗口打开
+            localChannel.config().setAutoRead(!stream.readPaused);
+            ByteBuf payload;
+            while ((payload = stream.pendingInbound.poll()) != null) {
+                deliver(stream, payload);
+            }
+        });
+    }
+
+    /**
+     * 限速结束后按流的发送窗口恢复读取本地通道
+     */
+    void resumeLocalRead(MuxStream stream) {
+        execute(() -> {
+            if (!stream.closed && stream.localChannel != null) {
+                stream.localChannel.config().setAutoRead(!stream.readPaused);
+            }
+        });
+    }
+
+    void sendData(MuxStream stream, ByteBuf data) {
+        execute(() -> {
+            if (stream.closed) {
+                data.release();
+                return;
+            }
+            while (data.isReadable()) {
+                int length = Math.min(MuxFrame.MAX_PAYLOAD, data.readableBytes());
+                boolean small = stream.bytesSent < SMALL_STREAM_BYTES;
+                enqueueData(stream, MuxFrame.header(channel.alloc(), MuxFrame.DATA, stream.id, length), data.readRetainedSlice(length), small);
+                stream.bytesSent += length;
+                stream.sendWindow -= length;
+            }
+            data.release();
+            // 发送窗口耗尽，暂停读取本地通道直到对端更新窗口
+            if (stream.sendWindow <= 0 && !stream.readPaused) {
+                stream.readPaused = true;
+                if (stream.localChannel != null) {
+                    stream.localChannel.config().setAutoRead(false);
+                }
+            }
+        });
+    }
+
+    void closeStream(MuxStream stream, boolean notifyRemote) {
+        execute(() -> {
+            if (stream.closed) {
+                return;
+            }
+            stream.closed = true;
+            streams.remove(stream.id);
+            activeStreams--;
+            if (notifyRemote && channel.isActive()) {
+                // 该流还有数据帧在普通队列中时关闭帧排在它们之后，否则对端会先关闭流并丢弃剩余数据
+                enqueue(MuxFrame.header(channel.alloc(), MuxFrame.CLOSE, stream.id, 0), null, stream.queuedBulkFrames == 0);
+            }
+            releasePendingInbound(stream);
+            if (stream.inboundMeter != null) {
+                stream.inboundMeter.close();
+            }
+            if (stream.openPromise != null) {
+                stream.openPromise.tryFailure(new ClosedChannelException());
+            }
+            closeOnFlush(stream.localChannel);
+        });
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        ByteBuf frame = (ByteBuf) msg;
+        try {
+            byte type = frame.readByte();
+            int streamId = frame.readInt();
+            int length = frame.readInt();
+            switch (type) {
+                case MuxFrame.OPEN:
+                    handleOpen(streamId, frame);
+                    break;
+                case MuxFrame.OPEN_ACK:
+                    handleOpenAck(streamId, frame.readByte());
+                    break;
+                case MuxFrame.DATA:
+                    handleData(streamId, frame.readRetainedSlice(length));
+                    break;
+                case MuxFrame.WINDOW_UPDATE:
+                    handleWindowUpdate(streamId, frame.readInt());
+                    break;
+                case MuxFrame.CLOSE:
+                    MuxStream stream = streams.get(streamId);
+                    if (stream != null) {
+                        closeStream(stream, false);
+                    }
+                    break;
+                default:
+                    logger.warn("未知的多路复用帧类型: {}", type);
+                    ctx.close();
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    private void handleOpen(int streamId, ByteBuf frame) {
+        String host = frame.readCharSequence(frame.readUnsignedByte(), StandardCharsets.US_ASCII).toString();
+        int port = frame.readUnsignedShort();
+        if (connector == null) {
+            logger.warn("客户端会话收到打开流请求，拒绝: {}", streamId);
+            sendOpenAck(streamId, STATUS_FAILURE);
+            return;
+        }
+
+        MuxStream stream = new MuxStream(streamId, this);
+        streams.put(streamId, stream);
+        activeStreams++;
+        logger.debug("多路复用流请求连接目标: {}:{}", host, port);
+
+        connector.apply(host, port).addListener((Future<Channel> f) -> execute(() -> {
+            if (!f.isSuccess()) {
+                logger.warn("多路复用流连接目标失败: {}:{}", host, port, f.cause());
+                sendOpenAck(streamId, STATUS_FAILURE);
+                closeStream(stream, false);
+                return;
+            }
+            Channel upstream = f.getNow();
+            if (stream.closed) {
+                upstream.close();
+                return;
+            }
+            sendOpenAck(streamId, STATUS_SUCCESS);
+            attach(stream, upstream);
+        }));
+    }
+
+    private void sendOpenAck(int streamId, byte status) {
+        ByteBuf payload = channel.alloc().buffer(1).writeByte(status);
+        enqueue(MuxFrame.header(channel.alloc(), MuxFrame.OPEN_ACK, streamId, 1), payload, true);
+    }
+
+    private void handleOpenAck(int streamId, byte status) {
+        MuxStream stream = streams.get(streamId);
+        if (stream == null || stream.openPromise == null) {
+            return;
+        }
+        if (status == STATUS_SUCCESS) {
+            stream.openPromise.trySuccess(stream);
+        } else {
+            stream.openPromise.tryFailure(new IOException("对端节点连接目标失败"));
+            closeStream(stream, false);
+        }
+    }
+
+    private void handleData(int streamId, ByteBuf payload) {
+        MuxStream stream = streams.get(streamId);
+        if (stream == null || stream.closed) {
+            payload.release();
+            return;
+        }
+        if (stream.localChannel == null) {
+            stream.pendingInbound.add(payload);
+        } else {
+            deliver(stream, payload);
+        }
+    }
+
+    /**
+     * 写入本地通道，写出后再向对端归还窗口，使流量控制跟随本地通道的可写性
+     */
+    private void deliver(MuxStream stream, ByteBuf payload) {
+        int length = payload.readableBytes();
+        TunnelMeter meter = stream.inboundMeter;
+        if (meter != null) {
+            meter.add(length);
+            meter.commit(channel.eventLoop());
+            if (meter.isExceeded() && !enforceInboundQuota(stream, meter)) {
+                payload.release();
+                return;
+            }
+        }
+        stream.localChannel.writeAndFlush(payload).addListener((ChannelFutureListener) f -> {
+            if (f.isSuccess()) {
+                execute(() -> consumed(stream, length));
+            } else {
+                closeStream(stream, true);
+            }
+        });
+    }
+
+    /**
+     * 对端到本地方向超过配额：关闭流，或在暂停期间不归还窗口实现限速
+     *
+     * @return 流已关闭时返回false
+     */
+    private boolean enforceInboundQuota(MuxStream stream, TunnelMeter meter) {
+        if (TrafficAccounting.throttleOnQuota()) {
+            meter.throttle(channel.eventLoop(), () -> { }, () -> consumed(stream, 0));
+            return true;
+        }
+        logger.info("账户超过流量配额，关闭多路复用流: {}", meter.exceededAccount());
+        closeStream(stream, true);
+        return false;
+    }
+
+    private void consumed(MuxStream stream, int length) {
+        if (stream.closed) {
+            return;
+        }
+        stream.unackedBytes += length;
+        boolean throttled = stream.inboundMeter != null && stream.inboundMeter.isThrottled();
+        if (stream.unackedBytes >= WINDOW_UPDATE_THRESHOLD && !throttled) {
+            ByteBuf payload = channel.alloc().buffer(4).writeInt(stream.unackedBytes);
+            enqueue(MuxFrame.header(channel.alloc(), MuxFrame.WINDOW_UPDATE, stream.id, 4), payload, true);
+            stream.unackedBytes = 0;
+        }
+    }
+
+    private void handleWindowUpdate(int streamId, int increment) {
+        MuxStream stream = streams.get(streamId);
+        if (stream == null) {
+            return;
+        }
+        stream.sendWindow += increment;
+        if (stream.readPaused && stream.sendWindow > 0) {
+            stream.readPaused = false;
+            // 限速暂停期间由限速结束时恢复读取
+            if (stream.localChannel != null && (stream.outboundMeter == null || !stream.outboundMeter.isThrottled())) {
+                stream.localChannel.config().setAutoRead(true);
+            }
+        }
+    }
+
+    private void enqueue(ByteBuf header, ByteBuf payload, boolean urgent) {
+        (urgent ? urgentFrames : bulkFrames).add(new PendingFrame(header, payload, null));
+        flushPending();
+    }
+
+    private void enqueueData(MuxStream stream, ByteBuf header, ByteBuf payload, boolean urgent) {
+        if (urgent) {
+            urgentFrames.add(new PendingFrame(header, payload, null));
+        } else {
+            stream.queuedBulkFrames++;
+            bulkFrames.add(new PendingFrame(header, payload, stream));
+        }
+        flushPending();
+    }
+
+    /**
+     * 在会话通道可写时按优先级写出待发送的帧
+     */
+    private void flushPending() {
+        boolean written = false;
+        while (channel.isWritable()) {
+            PendingFrame frame = urgentFrames.poll();
+            if (frame == null) {
+                frame = bulkFrames.poll();
+            }
+            if (frame == null) {
+                break;
+            }
+            if (frame.stream() != null) {
+                frame.stream().queuedBulkFrames--;
+            }
+            channel.write(frame.header());
+            if (frame.payload() != null) {
+                channel.write(frame.payload());
+            }
+            written = true;
+        }
+        if (written) {
+            channel.flush();
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (ctx.channel().isWritable()) {
+            flushPending();
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        logger.info("多路复用会话断开: {}, 活跃流: {}", ctx.channel().remoteAddress(), activeStreams);
+        for (MuxStream stream : new ArrayList<>(streams.values())) {
+            closeStream(stream, false);
+        }
+        releaseFrames(urgentFrames);
+        releaseFrames(bulkFrames);
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        if (cause instanceof IOException) {
+            logger.debug("多路复用会话网络异常: {}", cause.getMessage());
+        } else {
+            logger.error("多路复用会话发生异常", cause);
+        }
+        ctx.close();
+    }
+
+    private void execute(Runnable task) {
+        if (channel.eventLoop().inEventLoop()) {
+            task.run();
+        } else {
+            channel.eventLoop().execute(task);
+        }
+    }
+
+    private static void releasePendingInbound(MuxStream stream) {
+        ByteBuf payload;
+        while ((payload = stream.pendingInbound.poll()) != null) {
+            payload.release();
+        }
+    }
+
+    private static void releaseFrames(ArrayDeque<PendingFrame> frames) {
+        PendingFrame frame;
+        while ((frame = frames.poll()) != null) {
+            frame.header().release();
+            if (frame.payload() != null) {
+                frame.payload().release();
+            }
+        }
+    }
+
+    private static void closeOnFlush(Channel channel) {
+        if (channel != null && channel.isActive()) {
+            channel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.github.yanxianchao.redapricot.mux;
+
+import com.github.yanxianchao.redapricot.stats.TrafficAccounting;
+import com.github.yanxianchao.redapricot.stats.TunnelMeter;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.util.concurrent.Promise;
+
+import java.util.ArrayDeque;
+
+/**
+ * 多路复用连接上的一条逻辑流
+ * 除公开方法外，所有字段只在所属会话的事件循环上访问
+ */
+public final class MuxStream {
+
+    final int id;
+    final MuxSession session;
+
+    Channel localChannel;
+    Promise<MuxStream> openPromise;
+    // 发送窗口，耗尽后暂停读取本地通道
+    long sendWindow = MuxSession.INITIAL_WINDOW;
+    long bytesSent;
+    boolean readPaused;
+    // 已写入本地通道但尚未通知对端的字节数
+    int unackedBytes;
+    boolean closed;
+    // 在会话普通队列中尚未写出的数据帧数量，不为0时关闭帧排在这些数据帧之后
+    int queuedBulkFrames;
+    // 本地通道绑定前收到的数据
+    final ArrayDeque<ByteBuf> pendingInbound = new ArrayDeque<>();
+    // 本地到对端、对端到本地两个方向的流量计量，客户端绑定本地通道时创建，服务端为null
+    TunnelMeter outboundMeter;
+    TunnelMeter inboundMeter;
+
+    MuxStream(int id, MuxSession session) {
+        this.id = id;
+        this.session = session;
+    }
+
+    /**
+     * 把本地通道绑定到流上，本地数据写入流，流上的数据写回本地通道
+     * 中继处理器在调用线程上同步加入本地通道的管道
+     */
+    public void attach(Channel channel) {
+        session.attach(this, channel);
+    }
+
+    /**
+     * 绑定本地通道并按客户端计量两个方向的流量
+     *
+     * @param clientKey 客户端键，为null时不计量
+     */
+    public void attach(Channel channel, String clientKey, String destinationKey) {
+        String user = channel.attr(TrafficAccounting.USER).get();
+        outboundMeter = TunnelMeter.open(clientKey, destinationKey, user, true);
+        inboundMeter = TunnelMeter.open(clientKey, destinationKey, user, false);
+        session.attach(this, channel);
+    }
+
+    /**
+     * 向对端发送数据，所有权转移给流
+     */
+    public void write(ByteBuf data) {
+        session.sendData(this, data);
+    }
+
+    public void close() {
+        session.closeStream(this, true);
+    }
+}
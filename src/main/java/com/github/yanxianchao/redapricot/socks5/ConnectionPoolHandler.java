@@ -33,8 +33,8 @@ public class ConnectionPoolHandler extends ChannelInboundHandlerAdapter {
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
         logger.debug("连接池连接断开: {}", poolKey);
-        // 从连接池中移除断开的连接
-        connectionPool.remove(poolKey);
+        // 从连接池中移除断开的连接，已交给隧道的连接不在池中
+        connectionPool.remove(poolKey, ctx.channel());
         ctx.fireChannelInactive();
     }
     
@@ -54,7 +54,7 @@ public class ConnectionPoolHandler extends ChannelInboundHandlerAdapter {
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         logger.error("连接池连接异常: {}", poolKey, cause);
-        connectionPool.remove(poolKey);
+        connectionPool.remove(poolKey, ctx.channel());
         ctx.close();
     }
 }
\ No newline at end of file
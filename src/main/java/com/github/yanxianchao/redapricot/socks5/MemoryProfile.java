@@ -0,0 +1,140 @@
+package com.github.yanxianchao.redapricot.socks5;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.AdaptiveRecvByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.concurrent.EventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 连接内存配置
+ * 默认配置每个连接使用256KB套接字缓冲区和128K/512K写水位；
+ * 精简配置面向大量长期空闲的连接：发送缓冲区和写水位从小值开始，接收缓冲区交给内核自动调整，
+ * 隧道累计流量达到阈值后再扩大到默认配置，隧道空闲后缩回精简配置，并定期释放事件循环线程上未使用的池化缓存
+ */
+public final class MemoryProfile {
+    private static final Logger logger = LoggerFactory.getLogger(MemoryProfile.class);
+
+    // 是否启用精简内存配置（-Dredapricot.memory.lean=true）
+    private static final boolean LEAN_ENABLED = Boolean.getBoolean("redapricot.memory.lean");
+    // 隧道累计中继字节数超过该值后视为大流量隧道，扩大缓冲区
+    static final long BULK_THRESHOLD_BYTES = Long.getLong("redapricot.memory.bulkThresholdBytes", 1024 * 1024);
+    private static final long CACHE_TRIM_SECONDS = 60;
+    // 隧道一端读写都空闲超过该时间后缩回精简配置（-Dredapricot.memory.idleTrimSeconds=60）
+    private static final long IDLE_TRIM_SECONDS = Long.getLong("redapricot.memory.idleTrimSeconds", 60);
+
+    private static final int BULK_SOCKET_BUFFER = 256 * 1024;
+    private static final WriteBufferWaterMark BULK_WATER_MARK = new WriteBufferWaterMark(128 * 1024, 512 * 1024);
+    private static final int LEAN_SEND_BUFFER = 16 * 1024;
+    private static final WriteBufferWaterMark LEAN_WATER_MARK = new WriteBufferWaterMark(8 * 1024, 32 * 1024);
+
+    public static final MemoryProfile DEFAULT = new MemoryProfile(false);
+    public static final MemoryProfile LEAN = new MemoryProfile(true);
+
+    private final boolean lean;
+
+    private MemoryProfile(boolean lean) {
+        this.lean = lean;
+    }
+
+    /**
+     * 按系统属性选择的配置
+     */
+    public static MemoryProfile current() {
+        return LEAN_ENABLED ? LEAN : DEFAULT;
+    }
+
+    public boolean isLean() {
+        return lean;
+    }
+
+    /**
+     * 设置服务端接受的子通道的缓冲区选项
+     */
+    public ServerBootstrap applyChild(ServerBootstrap bootstrap) {
+        if (!lean) {
+            return bootstrap.childOption(ChannelOption.SO_RCVBUF, BULK_SOCKET_BUFFER)
+                    .childOption(ChannelOption.SO_SNDBUF, BULK_SOCKET_BUFFER)
+                    .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, BULK_WATER_MARK);
+        }
+        return bootstrap.childOption(ChannelOption.SO_SNDBUF, LEAN_SEND_BUFFER)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, LEAN_WATER_MARK)
+                .childOption(ChannelOption.RCVBUF_ALLOCATOR, new AdaptiveRecvByteBufAllocator(64, 512, 65536));
+    }
+
+    /**
+     * 设置上游连接的缓冲区选项
+     */
+    public Bootstrap apply(Bootstrap bootstrap) {
+        if (!lean) {
+            return bootstrap.option(ChannelOption.SO_RCVBUF, BULK_SOCKET_BUFFER)
+                    .option(ChannelOption.SO_SNDBUF, BULK_SOCKET_BUFFER)
+                    .option(ChannelOption.WRITE_BUFFER_WATER_MARK, BULK_WATER_MARK);
+        }
+        return bootstrap.option(ChannelOption.SO_SNDBUF, LEAN_SEND_BUFFER)
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, LEAN_WATER_MARK)
+                .option(ChannelOption.RCVBUF_ALLOCATOR, new AdaptiveRecvByteBufAllocator(64, 512, 65536));
+    }
+
+    /**
+     * 把大流量隧道的一端扩大到默认配置的缓冲区
+     */
+    public void grow(Channel channel) {
+        if (!lean) {
+            return;
+        }
+        ChannelConfig config = channel.config();
+        config.setOption(ChannelOption.SO_SNDBUF, BULK_SOCKET_BUFFER);
+        config.setWriteBufferWaterMark(BULK_WATER_MARK);
+        logger.debug("隧道转为大流量，扩大缓冲区: {}", channel.remoteAddress());
+    }
+
+    /**
+     * 精简配置下在中继处理器前加入空闲检测，空闲事件由中继处理器调用{@link #shrink}处理
+     */
+    public void installIdleTrim(ChannelHandlerContext ctx) {
+        if (!lean || IDLE_TRIM_SECONDS <= 0) {
+            return;
+        }
+        ctx.pipeline().addBefore(ctx.name(), null, new IdleStateHandler(0, 0, IDLE_TRIM_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /**
+     * 把空闲隧道的一端缩回精简配置的缓冲区，并释放当前事件循环线程上未使用的池化缓存
+     * 在通道的事件循环上调用
+     */
+    public void shrink(Channel channel) {
+        if (!lean) {
+            return;
+        }
+        ChannelConfig config = channel.config();
+        config.setWriteBufferWaterMark(LEAN_WATER_MARK);
+        config.setOption(ChannelOption.SO_SNDBUF, LEAN_SEND_BUFFER);
+        PooledByteBufAllocator.DEFAULT.trimCurrentThreadCache();
+        logger.debug("隧道空闲，缩回精简缓冲区: {}", channel.remoteAddress());
+    }
+
+    /**
+     * 在事件循环组的每个线程上定期释放不常用的池化缓存
+     */
+    public void install(EventLoopGroup group) {
+        if (!lean) {
+            return;
+        }
+        for (EventExecutor executor : group) {
+            executor.scheduleWithFixedDelay(() -> PooledByteBufAllocator.DEFAULT.trimCurrentThreadCache(),
+                    CACHE_TRIM_SECONDS, CACHE_TRIM_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -1,16 +1,20 @@
 package com.github.yanxianchao.redapricot.socks5;
 
+import com.github.yanxianchao.redapricot.trace.TunnelPhaseEvent;
+import com.github.yanxianchao.redapricot.trace.TunnelTrace;
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.*;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.dns.*;
-import io.netty.handler.ssl.SslContext;
-import io.netty.handler.ssl.SslContextBuilder;
-import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
 import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.resolver.dns.DnsNameResolver;
 import io.netty.resolver.dns.DnsNameResolverBuilder;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.Promise;
 import io.netty.util.concurrent.GenericFutureListener;
@@ -19,6 +23,8 @@ import org.slf4j.LoggerFactory;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
@@ -31,34 +37,82 @@ public class OptimizedConnectionManager {
     
     private final EventLoopGroup eventLoopGroup;
     private final DnsNameResolver dnsResolver;
-    private final ConcurrentHashMap<String, InetAddress> dnsCache;
+    private final ConcurrentHashMap<String, CachedAddress> dnsCache;
+    // 预连接的空闲连接，每个目标最多一条；交给隧道时从池中取出，之后不再放回，一条连接只属于一个隧道
     private final ConcurrentHashMap<String, Channel> connectionPool;
+    private final boolean epoll;
+    private final boolean tcpFastOpen;
     private static final long DNS_CACHE_TTL = TimeUnit.MINUTES.toMillis(5);
     private static final long CONNECTION_POOL_TTL = TimeUnit.MINUTES.toMillis(2);
+
+    /**
+     * DNS缓存项，记录过期时间
+     */
+    public static final class CachedAddress {
+        final InetAddress address;
+        final long expiresAt;
+
+        CachedAddress(InetAddress address, long expiresAt) {
+            this.address = address;
+            this.expiresAt = expiresAt;
+        }
+
+        public InetAddress address() {
+            return address;
+        }
+
+        public long expiresAt() {
+            return expiresAt;
+        }
+    }
     
     public OptimizedConnectionManager(EventLoopGroup eventLoopGroup) {
+        this(eventLoopGroup, false);
+    }
+
+    /**
+     * @param tcpFastOpen 是否对上游连接启用TCP Fast Open，仅在epoll事件循环组上生效
+     */
+    public OptimizedConnectionManager(EventLoopGroup eventLoopGroup, boolean tcpFastOpen) {
         this.eventLoopGroup = eventLoopGroup;
         this.dnsCache = new ConcurrentHashMap<>();
         this.connectionPool = new ConcurrentHashMap<>();
+        this.epoll = eventLoopGroup instanceof EpollEventLoopGroup;
+        this.tcpFastOpen = tcpFastOpen && epoll;
+        MemoryProfile.current().install(eventLoopGroup);
         
         // 初始化DNS解析器，启用缓存
         this.dnsResolver = new DnsNameResolverBuilder(eventLoopGroup.next())
-                .channelType(io.netty.channel.socket.nio.NioDatagramChannel.class)
+                .channelType(epoll ? EpollDatagramChannel.class : io.netty.channel.socket.nio.NioDatagramChannel.class)
                 .ttl(300, 300) // min和max TTL都设为300秒（5分钟）
                 .build();
     }
     
     /**
-     * 获取或创建连接，支持连接池复用
+     * 获取或创建连接，优先取出预连接的空闲连接
      */
     public Future<Channel> getOrCreateConnection(String host, int port) {
+        return getOrCreateConnection(host, port, null);
+    }
+
+    /**
+     * 获取或创建隧道独占的上游连接，并在连接上先发送客户端的早期数据
+     * 启用TCP Fast Open时早期数据随SYN一起发送，否则在连接建立后立即发送。
+     * 返回的连接关闭了自动读取，调用方在管道中加入中继处理器后再打开，避免目标的响应在此之前被丢弃
+     *
+     * @param initialData 早期数据，可为null，所有权转移给连接管理器
+     */
+    public Future<Channel> getOrCreateConnection(String host, int port, ByteBuf initialData) {
         Promise<Channel> promise = eventLoopGroup.next().newPromise();
         
-        // 检查连接池
+        // 取出预连接的空闲连接，取出后不再留在池中，避免被其他隧道共用
         String poolKey = host + ":" + port;
-        Channel pooledChannel = connectionPool.get(poolKey);
+        Channel pooledChannel = connectionPool.remove(poolKey);
         if (pooledChannel != null && pooledChannel.isActive()) {
-            logger.debug("复用连接池中的连接: {}", poolKey);
+            logger.debug("使用预连接的空闲连接: {}", poolKey);
+            if (initialData != null) {
+                pooledChannel.writeAndFlush(initialData);
+            }
             promise.setSuccess(pooledChannel);
             return promise;
         }
@@ -67,34 +121,71 @@ public class OptimizedConnectionManager {
         resolveDns(host).addListener((Future<InetAddress> dnsFuture) -> {
             if (dnsFuture.isSuccess()) {
                 InetAddress address = dnsFuture.getNow();
-                createNewConnection(address, port, poolKey, promise);
+                createNewConnection(address, port, poolKey, initialData, promise);
             } else {
+                ReferenceCountUtil.release(initialData);
                 promise.setFailure(dnsFuture.cause());
             }
         });
         
         return promise;
     }
+
+    /**
+     * 预先建立一条到目标的空闲连接放入连接池，供下一个到该目标的隧道取用
+     * 池中已有可用连接时直接返回该连接
+     */
+    public Future<Channel> preconnect(String host, int port) {
+        String poolKey = host + ":" + port;
+        Channel pooledChannel = connectionPool.get(poolKey);
+        if (pooledChannel != null && pooledChannel.isActive()) {
+            return eventLoopGroup.next().newSucceededFuture(pooledChannel);
+        }
+        Promise<Channel> promise = eventLoopGroup.next().newPromise();
+        resolveDns(host).addListener((Future<InetAddress> dnsFuture) -> {
+            if (!dnsFuture.isSuccess()) {
+                promise.setFailure(dnsFuture.cause());
+                return;
+            }
+            Promise<Channel> connectPromise = eventLoopGroup.next().newPromise();
+            connectPromise.addListener((Future<Channel> f) -> {
+                if (!f.isSuccess()) {
+                    promise.setFailure(f.cause());
+                    return;
+                }
+                Channel channel = f.getNow();
+                if (connectionPool.putIfAbsent(poolKey, channel) != null) {
+                    // 并发的预连接已经放入了一条
+                    channel.close();
+                }
+                promise.setSuccess(channel);
+            });
+            createNewConnection(dnsFuture.getNow(), port, poolKey, null, connectPromise);
+        });
+        return promise;
+    }
     
     /**
      * DNS解析，支持缓存
      */
-    private Future<InetAddress> resolveDns(String host) {
+    Future<InetAddress> resolveDns(String host) {
         Promise<InetAddress> promise = eventLoopGroup.next().newPromise();
         
         // 检查DNS缓存
-        InetAddress cachedAddress = dnsCache.get(host);
-        if (cachedAddress != null) {
-            logger.debug("使用DNS缓存: {} -> {}", host, cachedAddress);
-            promise.setSuccess(cachedAddress);
+        CachedAddress cachedAddress = dnsCache.get(host);
+        if (cachedAddress != null && cachedAddress.expiresAt > System.currentTimeMillis()) {
+            logger.debug("使用DNS缓存: {} -> {}", host, cachedAddress.address);
+            promise.setSuccess(cachedAddress.address);
             return promise;
         }
         
         // 执行DNS查询
+        TunnelPhaseEvent dnsEvent = TunnelTrace.begin(TunnelTrace.DNS);
         dnsResolver.resolve(host).addListener((Future<InetAddress> future) -> {
+            TunnelTrace.end(dnsEvent, host, null, 0);
             if (future.isSuccess()) {
                 InetAddress address = future.getNow();
-                dnsCache.put(host, address);
+                dnsCache.put(host, new CachedAddress(address, System.currentTimeMillis() + DNS_CACHE_TTL));
                 logger.debug("DNS解析并缓存: {} -> {}", host, address);
                 promise.setSuccess(address);
             } else {
@@ -109,20 +200,17 @@ public class OptimizedConnectionManager {
     /**
      * 创建新的连接
      */
-    private void createNewConnection(InetAddress address, int port, String poolKey, Promise<Channel> promise) {
+    private void createNewConnection(InetAddress address, int port, String poolKey, ByteBuf initialData, Promise<Channel> promise) {
         Bootstrap bootstrap = new Bootstrap();
         bootstrap.group(eventLoopGroup)
-                .channel(NioSocketChannel.class)
+                .channel(epoll ? EpollSocketChannel.class : NioSocketChannel.class)
                 .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000)
                 .option(ChannelOption.SO_KEEPALIVE, true)
                 .option(ChannelOption.TCP_NODELAY, true)
-                .option(ChannelOption.SO_RCVBUF, 256 * 1024)
-                .option(ChannelOption.SO_SNDBUF, 256 * 1024)
                 .option(ChannelOption.SO_REUSEADDR, true)
-                .option(ChannelOption.AUTO_READ, true)
+                // 中继处理器加入管道后由调用方打开自动读取
+                .option(ChannelOption.AUTO_READ, false)
                 .option(ChannelOption.MAX_MESSAGES_PER_READ, 16)
-                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, 
-                        new io.netty.channel.WriteBufferWaterMark(128 * 1024, 512 * 1024))
                 .option(ChannelOption.SO_LINGER, 0)
                 .option(ChannelOption.ALLOW_HALF_CLOSURE, true)
                 .handler(new ChannelInitializer<Channel>() {
@@ -134,28 +222,76 @@ public class OptimizedConnectionManager {
                         ch.pipeline().addLast(new ConnectionPoolHandler(poolKey, connectionPool));
                     }
                 });
-        
-        ChannelFuture connectFuture = bootstrap.connect(address, port);
-        connectFuture.addListener((ChannelFuture future) -> {
-            if (future.isSuccess()) {
-                Channel channel = future.channel();
-                connectionPool.put(poolKey, channel);
-                logger.debug("创建新连接并加入连接池: {}", poolKey);
-                promise.setSuccess(channel);
-            } else {
-                logger.error("连接失败: {}:{}", address, port, future.cause());
+        if (tcpFastOpen) {
+            bootstrap.option(ChannelOption.TCP_FASTOPEN_CONNECT, true);
+        }
+        // 套接字缓冲区和写水位按内存配置设置
+        MemoryProfile.current().apply(bootstrap);
+
+        // 先注册再连接，TCP Fast Open模式下连接前写入的数据会随SYN一起发送
+        ChannelFuture registerFuture = bootstrap.register();
+        registerFuture.addListener((ChannelFuture future) -> {
+            if (!future.isSuccess()) {
+                ReferenceCountUtil.release(initialData);
+                logger.error("注册连接失败: {}:{}", address, port, future.cause());
                 promise.setFailure(future.cause());
+                return;
+            }
+            Channel channel = future.channel();
+            int earlyBytes = initialData != null ? initialData.readableBytes() : 0;
+            TunnelPhaseEvent connectEvent = TunnelTrace.begin(TunnelTrace.UPSTREAM_CONNECT);
+            if (tcpFastOpen && initialData != null) {
+                channel.write(initialData);
             }
+            channel.connect(new InetSocketAddress(address, port)).addListener((ChannelFuture connectFuture) -> {
+                TunnelTrace.end(connectEvent, poolKey, channel, earlyBytes);
+                if (connectFuture.isSuccess()) {
+                    if (!tcpFastOpen && initialData != null) {
+                        channel.writeAndFlush(initialData);
+                    }
+                    logger.debug("创建新连接: {}", poolKey);
+                    promise.setSuccess(channel);
+                } else {
+                    if (!tcpFastOpen) {
+                        ReferenceCountUtil.release(initialData);
+                    }
+                    logger.error("连接失败: {}:{}", address, port, connectFuture.cause());
+                    channel.close();
+                    promise.setFailure(connectFuture.cause());
+                }
+            });
         });
     }
     
+    /**
+     * 上游连接使用的事件循环组
+     */
+    public EventLoopGroup eventLoopGroup() {
+        return eventLoopGroup;
+    }
+
+    /**
+     * 当前DNS缓存的只读视图，用于生成快照
+     */
+    public Map<String, CachedAddress> dnsCacheView() {
+        return Collections.unmodifiableMap(dnsCache);
+    }
+
+    /**
+     * 从快照恢复一条仍未过期的DNS缓存
+     */
+    public void restoreDnsEntry(String host, InetAddress address, long expiresAt) {
+        dnsCache.putIfAbsent(host, new CachedAddress(address, expiresAt));
+    }
+
     /**
      * 清理过期的DNS缓存和连接
      */
     public void cleanup() {
-        // 清理DNS缓存
-        dnsCache.clear();
-        logger.info("DNS缓存已清理");
+        // 清理过期的DNS缓存
+        long now = System.currentTimeMillis();
+        dnsCache.values().removeIf(entry -> entry.expiresAt <= now);
+        logger.info("过期DNS缓存已清理");
         
         // 清理连接池
         connectionPool.forEach((key, channel) -> {
@@ -1,8 +1,17 @@
 package com.github.yanxianchao.redapricot.socks5;
 
+import com.github.yanxianchao.redapricot.loop.LoopBalancer;
+import com.github.yanxianchao.redapricot.loop.LoopLoad;
+import com.github.yanxianchao.redapricot.startup.StartupWarmer;
+import com.github.yanxianchao.redapricot.stats.TrafficAccounting;
+import com.github.yanxianchao.redapricot.stats.TunnelMeter;
+import com.github.yanxianchao.redapricot.trace.TunnelPhaseEvent;
+import com.github.yanxianchao.redapricot.trace.TunnelTrace;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,12 +27,73 @@ public class RelayHandler extends ChannelInboundHandlerAdapter implements Channe
     private volatile boolean isRelayActive = true;
     private static final int BUFFER_SIZE = 65536; // 增加缓冲区大小到64KB
 
+    // 热点统计的键，为null时不统计
+    private final String clientKey;
+    private final String destinationKey;
+    // 本批次读取的字节数，在读取完成时批量提交到负载指标和流量计量
+    private long pendingBytes;
+    // 本方向的热点统计和计费，隧道建立时创建，不统计时为null
+    private TunnelMeter meter;
+    // 所在事件循环的负载指标和迁移用的隧道，未启用负载感知时为null
+    private LoopLoad loopLoad;
+    private LoopBalancer.Tunnel tunnel;
+    // 本方向累计中继的字节数，精简内存配置下用于判断是否扩大缓冲区
+    private long relayedBytes;
+    private boolean grown;
+    // 本方向累计读取的字节数和阶段追踪事件，未启用追踪时事件为null
+    private long totalBytes;
+    private TunnelPhaseEvent firstByteEvent;
+    // 关闭阶段从本端变为不活跃或第一次请求关闭时开始，到对端也关闭时结束
+    private TunnelPhaseEvent closeEvent;
+    private boolean closeBegun;
+    private long openedNanos;
+    private long closeBeganNanos;
+    // 启动预热的回环隧道，不追踪阶段
+    private boolean warmup;
+
     public RelayHandler(Channel relayChannel) {
+        this(relayChannel, null, null);
+    }
+
+    public RelayHandler(Channel relayChannel, String clientKey, String destinationKey) {
         this.relayChannel = relayChannel;
+        this.clientKey = clientKey;
+        this.destinationKey = destinationKey;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        // 接受的通道有父通道，据此区分客户端一侧，连接数只在客户端一侧计一次
+        boolean clientSide = ctx.channel().parent() != null;
+        Channel clientChannel = clientSide ? ctx.channel() : relayChannel;
+        warmup = StartupWarmer.isWarmup(clientChannel);
+        firstByteEvent = TunnelTrace.begin(TunnelTrace.FIRST_BYTE, clientChannel);
+        openedNanos = System.nanoTime();
+        loopLoad = LoopLoad.of(ctx.channel().eventLoop());
+        if (LoopBalancer.isEnabled()) {
+            tunnel = LoopBalancer.track(clientChannel, clientSide ? relayChannel : ctx.channel());
+        }
+        meter = TunnelMeter.open(clientChannel, clientKey, destinationKey, clientChannel.attr(TrafficAccounting.USER).get(), clientSide);
+        MemoryProfile.current().installIdleTrim(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        // 处理器加入时通道已关闭则不会收到channelInactive，在管道销毁时归还计费账户
+        if (meter != null) {
+            meter.close();
+        }
     }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof ByteBuf) {
+            pendingBytes += ((ByteBuf) msg).readableBytes();
+            if (firstByteEvent != null) {
+                TunnelTrace.end(firstByteEvent, destinationKey, ctx.channel(), pendingBytes);
+                firstByteEvent = null;
+            }
+        }
         if (!isRelayActive) {
             // 如果中继已关闭，释放消息
             ReferenceCountUtil.release(msg);
@@ -42,9 +112,12 @@ public class RelayHandler extends ChannelInboundHandlerAdapter implements Channe
                 });
             } else {
                 // 对端不可写时，等待一段时间再尝试
-                ctx.channel().config().setAutoRead(false);
+                LoopBalancer.setAutoRead(ctx.channel(), false);
                 relayChannel.writeAndFlush(msg).addListener((ChannelFutureListener) f -> {
-                    ctx.channel().config().setAutoRead(true);
+                    // 限速暂停期间由限速结束时恢复读取；隧道迁移期间推迟到迁移结束
+                    if (meter == null || !meter.isThrottled()) {
+                        LoopBalancer.setAutoRead(ctx.channel(), true);
+                    }
                     if (!f.isSuccess()) {
                         logger.debug("延迟数据转发失败: {}", f.cause().getMessage());
                         closeOnFlush(ctx.channel());
@@ -55,12 +128,100 @@ public class RelayHandler extends ChannelInboundHandlerAdapter implements Channe
             // 如果对端通道不活跃，释放消息并关闭当前通道
             ReferenceCountUtil.release(msg);
             logger.debug("对端通道不活跃，关闭当前连接,source={},target={}", ctx.channel().remoteAddress(), relayChannel.remoteAddress());
+            beginClose();
+            closeOnFlush(ctx.channel());
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        if (!grown && pendingBytes > 0) {
+            growIfBulk(ctx);
+        }
+        flushStats(ctx);
+        if (meter != null && isRelayActive && meter.isExceeded()) {
+            enforceQuota(ctx);
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    private void flushStats(ChannelHandlerContext ctx) {
+        totalBytes += pendingBytes;
+        if (pendingBytes > 0 && loopLoad != null) {
+            loopLoad.recordBytes(pendingBytes);
+            if (tunnel != null) {
+                tunnel.addBytes(pendingBytes);
+            }
+        }
+        if (pendingBytes > 0 && meter != null) {
+            meter.add(pendingBytes);
+            meter.commit(ctx.channel().eventLoop());
+        }
+        pendingBytes = 0;
+    }
+
+    /**
+     * 精简内存配置下，累计流量超过阈值的隧道两端一起扩大缓冲区
+     */
+    private void growIfBulk(ChannelHandlerContext ctx) {
+        relayedBytes += pendingBytes;
+        if (relayedBytes < MemoryProfile.BULK_THRESHOLD_BYTES) {
+            return;
+        }
+        grown = true;
+        MemoryProfile.current().grow(ctx.channel());
+        MemoryProfile.current().grow(relayChannel);
+    }
+
+    /**
+     * 有账户超过配额时关闭隧道，或暂停读取实现限速
+     */
+    private void enforceQuota(ChannelHandlerContext ctx) {
+        if (TrafficAccounting.throttleOnQuota()) {
+            Channel channel = ctx.channel();
+            meter.throttle(ctx.executor(), () -> LoopBalancer.setAutoRead(channel, false),
+                    () -> LoopBalancer.setAutoRead(channel, true));
+        } else {
+            logger.info("账户超过流量配额，关闭隧道: {}", meter.exceededAccount());
+            beginClose();
+            isRelayActive = false;
             closeOnFlush(ctx.channel());
+            closeOnFlush(relayChannel);
+        }
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof IdleStateEvent && ((IdleStateEvent) evt).state() == IdleState.ALL_IDLE) {
+            // 精简内存配置下隧道空闲：缩回缓冲区，之后累计流量重新达到阈值时再扩大
+            MemoryProfile.current().shrink(ctx.channel());
+            grown = false;
+            relayedBytes = 0;
+            return;
         }
+        super.userEventTriggered(ctx, evt);
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
+        flushStats(ctx);
+        if (meter != null) {
+            meter.close();
+        }
+        beginClose();
+        TunnelPhaseEvent event = closeEvent;
+        closeEvent = null;
+        if (event != null) {
+            // 对端也关闭时结束关闭阶段
+            Channel channel = ctx.channel();
+            long bytes = totalBytes;
+            long lifetime = closeBeganNanos - openedNanos;
+            relayChannel.closeFuture().addListener(f ->
+                    TunnelTrace.endClose(event, destinationKey, channel, bytes, lifetime));
+        }
+        if (tunnel != null) {
+            LoopBalancer.untrack(tunnel);
+        }
         logger.info("通道变为不活跃状态，关闭对端连接");
         isRelayActive = false;
         closeOnFlush(relayChannel);
@@ -76,6 +237,7 @@ public class RelayHandler extends ChannelInboundHandlerAdapter implements Channe
         } else {
             logger.error("数据中继处理器发生异常", cause);
         }
+        beginClose();
         isRelayActive = false;
         closeOnFlush(ctx.channel());
         closeOnFlush(relayChannel);
@@ -91,8 +253,19 @@ public class RelayHandler extends ChannelInboundHandlerAdapter implements Channe
         }
     }
 
+    @Override
+    public void channelRegistered(ChannelHandlerContext ctx) {
+        // 隧道迁移后重新注册到新的事件循环
+        loopLoad = LoopLoad.of(ctx.channel().eventLoop());
+        ctx.fireChannelRegistered();
+    }
+
     @Override
     public void channelUnregistered(ChannelHandlerContext ctx) {
+        if (LoopBalancer.isMigrating(ctx.channel())) {
+            ctx.fireChannelUnregistered();
+            return;
+        }
         try {
             logger.debug("SOCKS5中继连接已注销 - 远程地址: {}", ctx.channel().remoteAddress());
             isRelayActive = false;
@@ -105,6 +278,17 @@ public class RelayHandler extends ChannelInboundHandlerAdapter implements Channe
         }
     }
 
+    /**
+     * 开始关闭阶段，只有第一次调用生效
+     */
+    private void beginClose() {
+        if (!closeBegun) {
+            closeBegun = true;
+            closeBeganNanos = System.nanoTime();
+            closeEvent = warmup ? null : TunnelTrace.begin(TunnelTrace.CLOSE);
+        }
+    }
+
     /**
      * 优雅地关闭通道
      */
@@ -0,0 +1,365 @@
+package com.github.yanxianchao.redapricot.socks5;
+
+import com.github.yanxianchao.redapricot.mux.MuxClientPool;
+import com.github.yanxianchao.redapricot.mux.MuxStream;
+import com.github.yanxianchao.redapricot.startup.Readiness;
+import com.github.yanxianchao.redapricot.startup.StartupWarmer;
+import com.github.yanxianchao.redapricot.stats.HeavyHitters;
+import com.github.yanxianchao.redapricot.trace.TunnelPhaseEvent;
+import com.github.yanxianchao.redapricot.trace.TunnelTrace;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.util.AttributeKey;
+import io.netty.util.NetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 融合的SOCKS5握手处理器
+ * 单个共享实例直接从ByteBuf解析问候和CONNECT请求，不创建编解码器和请求/响应对象，
+ * 每个连接只保存一个紧凑的状态对象，握手完成后只移除自身一次
+ */
+@ChannelHandler.Sharable
+public final class Socks5FusedHandshakeHandler extends ChannelInboundHandlerAdapter {
+    private static final Logger logger = LoggerFactory.getLogger(Socks5FusedHandshakeHandler.class);
+
+    public static final Socks5FusedHandshakeHandler INSTANCE = new Socks5FusedHandshakeHandler();
+
+    private static final AttributeKey<HandshakeState> STATE = AttributeKey.valueOf(Socks5FusedHandshakeHandler.class, "STATE");
+
+    private static final byte VERSION = 0x05;
+    private static final byte CMD_CONNECT = 0x01;
+    private static final byte ATYP_IPV4 = 0x01;
+    private static final byte ATYP_DOMAIN = 0x03;
+    private static final byte ATYP_IPV6 = 0x04;
+
+    private static final byte PHASE_GREETING = 0;
+    private static final byte PHASE_COMMAND = 1;
+    private static final byte PHASE_CONNECTING = 2;
+
+    // 预编码的响应报文
+    private static final ByteBuf NO_AUTH_REPLY = fixedReply(VERSION, 0x00);
+    private static final ByteBuf NO_ACCEPTABLE_METHOD_REPLY = fixedReply(VERSION, 0xFF);
+    private static final ByteBuf CONNECT_SUCCESS_REPLY = fixedReply(VERSION, 0x00, 0x00, ATYP_IPV4, 0, 0, 0, 0, 0, 0);
+    private static final ByteBuf CONNECT_FAILURE_REPLY = fixedReply(VERSION, 0x01, 0x00, ATYP_IPV4, 0, 0, 0, 0, 0, 0);
+    private static final ByteBuf COMMAND_UNSUPPORTED_REPLY = fixedReply(VERSION, 0x07, 0x00, ATYP_IPV4, 0, 0, 0, 0, 0, 0);
+    private static final ByteBuf ADDRESS_UNSUPPORTED_REPLY = fixedReply(VERSION, 0x08, 0x00, ATYP_IPV4, 0, 0, 0, 0, 0, 0);
+
+    private Socks5FusedHandshakeHandler() {
+    }
+
+    /**
+     * 每个连接的握手状态
+     */
+    static final class HandshakeState {
+        byte phase = PHASE_GREETING;
+        ByteBuf cumulation;
+        // 当前阶段的追踪事件，未启用时为null
+        TunnelPhaseEvent event;
+        // 收到CONNECT请求的时间，用于统计就绪后第一个连接的建立耗时
+        long connectStartNanos;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        HandshakeState state = new HandshakeState();
+        state.event = TunnelTrace.begin(TunnelTrace.ACCEPT, ctx.channel());
+        ctx.channel().attr(STATE).set(state);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        HandshakeState state = ctx.channel().attr(STATE).getAndSet(null);
+        if (state != null && state.cumulation != null) {
+            state.cumulation.release();
+            state.cumulation = null;
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        HandshakeState state = ctx.channel().attr(STATE).get();
+        if (state == null || !(msg instanceof ByteBuf)) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+
+        ByteBuf in = (ByteBuf) msg;
+        if (state.cumulation != null) {
+            in = ByteToMessageDecoder.MERGE_CUMULATOR.cumulate(ctx.alloc(), state.cumulation, in);
+        }
+        state.cumulation = in;
+
+        if (state.phase == PHASE_GREETING && !handleGreeting(ctx, state, in)) {
+            return;
+        }
+        if (state.phase == PHASE_COMMAND && !handleCommand(ctx, state, in)) {
+            return;
+        }
+        if (state.phase == PHASE_CONNECTING) {
+            // 连接建立期间缓冲早期数据，超过上限后暂停读取
+            if (in.readableBytes() >= Socks5ServerHandler.MAX_EARLY_DATA) {
+                ctx.channel().config().setAutoRead(false);
+            }
+        } else if (!in.isReadable()) {
+            in.release();
+            state.cumulation = null;
+        }
+    }
+
+    /**
+     * 解析问候报文：VER NMETHODS METHODS...
+     *
+     * @return 问候已处理完成时返回true
+     */
+    private boolean handleGreeting(ChannelHandlerContext ctx, HandshakeState state, ByteBuf in) {
+        if (in.readableBytes() < 2) {
+            return false;
+        }
+        int readerIndex = in.readerIndex();
+        if (in.getByte(readerIndex) != VERSION) {
+            logger.debug("不支持的SOCKS版本: {}", in.getByte(readerIndex));
+            ctx.close();
+            return false;
+        }
+        int methods = in.getUnsignedByte(readerIndex + 1);
+        if (in.readableBytes() < 2 + methods) {
+            return false;
+        }
+
+        boolean noAuth = false;
+        for (int i = readerIndex + 2, end = readerIndex + 2 + methods; i < end; i++) {
+            if (in.getByte(i) == 0x00) {
+                noAuth = true;
+                break;
+            }
+        }
+        in.skipBytes(2 + methods);
+        TunnelTrace.end(state.event, null, ctx.channel(), 0);
+        state.event = null;
+
+        if (!noAuth) {
+            logger.warn("客户端不支持无认证方法");
+            ctx.writeAndFlush(NO_ACCEPTABLE_METHOD_REPLY.duplicate()).addListener(ChannelFutureListener.CLOSE);
+            return false;
+        }
+        TunnelPhaseEvent greetingEvent = TunnelTrace.begin(TunnelTrace.GREETING, ctx.channel());
+        ctx.writeAndFlush(NO_AUTH_REPLY.duplicate())
+                .addListener(f -> TunnelTrace.end(greetingEvent, null, ctx.channel(), 0));
+        state.phase = PHASE_COMMAND;
+        return true;
+    }
+
+    /**
+     * 解析命令报文：VER CMD RSV ATYP DST.ADDR DST.PORT
+     *
+     * @return 命令已处理完成时返回true
+     */
+    private boolean handleCommand(ChannelHandlerContext ctx, HandshakeState state, ByteBuf in) {
+        if (in.readableBytes() < 5) {
+            return false;
+        }
+        int readerIndex = in.readerIndex();
+        byte version = in.getByte(readerIndex);
+        byte command = in.getByte(readerIndex + 1);
+        byte addressType = in.getByte(readerIndex + 3);
+
+        int addressLength;
+        int addressOffset = readerIndex + 4;
+        switch (addressType) {
+            case ATYP_IPV4:
+                addressLength = 4;
+                break;
+            case ATYP_IPV6:
+                addressLength = 16;
+                break;
+            case ATYP_DOMAIN:
+                addressLength = in.getUnsignedByte(addressOffset);
+                addressOffset++;
+                break;
+            default:
+                logger.warn("不支持的SOCKS5地址类型: {}", addressType);
+                ctx.writeAndFlush(ADDRESS_UNSUPPORTED_REPLY.duplicate()).addListener(ChannelFutureListener.CLOSE);
+                return false;
+        }
+        int frameLength = addressOffset - readerIndex + addressLength + 2;
+        if (in.readableBytes() < frameLength) {
+            return false;
+        }
+        if (version != VERSION || command != CMD_CONNECT) {
+            logger.warn("不支持的SOCKS5命令类型: {}", command);
+            ctx.writeAndFlush(COMMAND_UNSUPPORTED_REPLY.duplicate()).addListener(ChannelFutureListener.CLOSE);
+            return false;
+        }
+
+        String host = decodeAddress(in, addressType, addressOffset, addressLength);
+        int port = in.getUnsignedShort(addressOffset + addressLength);
+        in.skipBytes(frameLength);
+
+        state.phase = PHASE_CONNECTING;
+        state.connectStartNanos = System.nanoTime();
+        state.event = TunnelTrace.begin(TunnelTrace.CONNECT, ctx.channel());
+        // 与CONNECT请求一起到达的数据作为早期数据随连接一起发送
+        ByteBuf initialData = null;
+        if (in.isReadable()) {
+            initialData = in;
+            state.cumulation = null;
+        }
+        connect(ctx, state, host, port, initialData);
+        return false;
+    }
+
+    private static String decodeAddress(ByteBuf in, byte addressType, int offset, int length) {
+        if (addressType == ATYP_DOMAIN) {
+            return in.toString(offset, length, StandardCharsets.US_ASCII);
+        }
+        if (addressType == ATYP_IPV4) {
+            return NetUtil.intToIpAddress(in.getInt(offset));
+        }
+        byte[] address = new byte[length];
+        in.getBytes(offset, address);
+        return NetUtil.bytesToIpAddress(address);
+    }
+
+    private void connect(ChannelHandlerContext ctx, HandshakeState state, String host, int port, ByteBuf initialData) {
+        logger.debug("处理CONNECT命令 - 目标地址: {}:{}", host, port);
+        String clientKey = HeavyHitters.clientKey(ctx.channel().remoteAddress());
+        String destinationKey = host + ":" + port;
+        if (!StartupWarmer.isWarmup(ctx.channel())) {
+            HeavyHitters.recordConnect(ctx.executor(), clientKey, destinationKey);
+        }
+
+        MuxClientPool muxClient = Socks5ServerHandler.muxClient();
+        if (muxClient != null) {
+            // 多路复用模式下早期数据留在缓冲区，流打开后一起发送；没有早期数据时已读完的缓冲区
+            // 也留在state中，由流打开或处理器移除时释放
+            if (initialData != null) {
+                state.cumulation = initialData;
+            }
+            muxClient.openStream(host, port).addListener((Future<MuxStream> f) -> {
+                if (ctx.executor().inEventLoop()) {
+                    onMuxStreamOpened(ctx, state, f, host, port, clientKey, destinationKey);
+                } else {
+                    ctx.executor().execute(() -> onMuxStreamOpened(ctx, state, f, host, port, clientKey, destinationKey));
+                }
+            });
+            return;
+        }
+
+        Socks5ServerHandler.connectTarget(host, port, initialData).addListener((Future<Channel> f) -> {
+            if (ctx.executor().inEventLoop()) {
+                onConnectComplete(ctx, state, f, host, port, clientKey, destinationKey);
+            } else {
+                ctx.executor().execute(() -> onConnectComplete(ctx, state, f, host, port, clientKey, destinationKey));
+            }
+        });
+    }
+
+    private void onConnectComplete(ChannelHandlerContext ctx, HandshakeState state, Future<Channel> f, String host, int port,
+                                   String clientKey, String destinationKey) {
+        Channel clientChannel = ctx.channel();
+        if (!f.isSuccess()) {
+            logger.error("连接目标服务器失败: {}:{}", host, port, f.cause());
+            ctx.writeAndFlush(CONNECT_FAILURE_REPLY.duplicate()).addListener(ChannelFutureListener.CLOSE);
+            endConnectPhase(ctx, state, host, port);
+            return;
+        }
+
+        Channel targetChannel = f.getNow();
+        if (!clientChannel.isActive() || ctx.isRemoved()) {
+            logger.debug("客户端在连接建立前已断开: {}:{}", host, port);
+            targetChannel.close();
+            return;
+        }
+
+        ctx.writeAndFlush(CONNECT_SUCCESS_REPLY.duplicate());
+        endConnectPhase(ctx, state, host, port);
+        Readiness.recordFirstConnection(state.connectStartNanos);
+        targetChannel.pipeline().addLast(new RelayHandler(clientChannel, clientKey, destinationKey));
+        ctx.pipeline().addLast(new RelayHandler(targetChannel, clientKey, destinationKey));
+
+        // 把连接建立期间缓冲的数据交给中继处理器
+        ByteBuf leftover = state.cumulation;
+        state.cumulation = null;
+        if (leftover != null) {
+            if (leftover.isReadable()) {
+                ctx.fireChannelRead(leftover);
+            } else {
+                leftover.release();
+            }
+        }
+
+        ctx.pipeline().remove(this);
+        clientChannel.config().setAutoRead(true);
+        // 中继处理器就位后再读取目标的数据
+        targetChannel.config().setAutoRead(true);
+        logger.debug("SOCKS5连接建立，开始双向数据转发: {}:{}", host, port);
+    }
+
+    private void onMuxStreamOpened(ChannelHandlerContext ctx, HandshakeState state, Future<MuxStream> f, String host, int port,
+                                   String clientKey, String destinationKey) {
+        if (!f.isSuccess()) {
+            logger.error("多路复用流打开失败: {}:{}", host, port, f.cause());
+            ctx.writeAndFlush(CONNECT_FAILURE_REPLY.duplicate()).addListener(ChannelFutureListener.CLOSE);
+            endConnectPhase(ctx, state, host, port);
+            return;
+        }
+        MuxStream stream = f.getNow();
+        if (!ctx.channel().isActive() || ctx.isRemoved()) {
+            stream.close();
+            return;
+        }
+
+        ctx.writeAndFlush(CONNECT_SUCCESS_REPLY.duplicate());
+        endConnectPhase(ctx, state, host, port);
+        Readiness.recordFirstConnection(state.connectStartNanos);
+        stream.attach(ctx.channel(), clientKey, destinationKey);
+        ByteBuf leftover = state.cumulation;
+        state.cumulation = null;
+        if (leftover != null) {
+            if (leftover.isReadable()) {
+                stream.write(leftover);
+            } else {
+                leftover.release();
+            }
+        }
+
+        ctx.pipeline().remove(this);
+        ctx.channel().config().setAutoRead(true);
+        logger.debug("SOCKS5多路复用流建立，开始双向数据转发: {}:{}", host, port);
+    }
+
+    private static void endConnectPhase(ChannelHandlerContext ctx, HandshakeState state, String host, int port) {
+        TunnelTrace.end(state.event, host + ":" + port, ctx.channel(), 0);
+        state.event = null;
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        if (cause instanceof IOException) {
+            logger.debug("SOCKS5握手网络异常: {}", cause.getMessage());
+        } else {
+            logger.error("SOCKS5融合握手处理器发生异常", cause);
+        }
+        ctx.close();
+    }
+
+    private static ByteBuf fixedReply(int... bytes) {
+        ByteBuf buf = Unpooled.directBuffer(bytes.length, bytes.length);
+        for (int b : bytes) {
+            buf.writeByte(b);
+        }
+        return Unpooled.unreleasableBuffer(buf.asReadOnly());
+    }
+}
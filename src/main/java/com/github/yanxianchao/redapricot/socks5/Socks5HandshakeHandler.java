@@ -1,5 +1,7 @@
 package com.github.yanxianchao.redapricot.socks5;
 
+import com.github.yanxianchao.redapricot.trace.TunnelPhaseEvent;
+import com.github.yanxianchao.redapricot.trace.TunnelTrace;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
@@ -16,6 +18,15 @@ import java.io.IOException;
 public class Socks5HandshakeHandler extends ChannelInboundHandlerAdapter {
     private static final Logger logger = LoggerFactory.getLogger(Socks5HandshakeHandler.class);
 
+    // 从连接建立到收到问候报文的阶段事件
+    private TunnelPhaseEvent acceptEvent;
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        acceptEvent = TunnelTrace.begin(TunnelTrace.ACCEPT, ctx.channel());
+        super.channelActive(ctx);
+    }
+
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
         if (msg instanceof Socks5InitialRequest) {
@@ -31,6 +42,9 @@ public class Socks5HandshakeHandler extends ChannelInboundHandlerAdapter {
     }
 
     private void handleInitialRequest(ChannelHandlerContext ctx, Socks5InitialRequest request) {
+        TunnelTrace.end(acceptEvent, null, ctx.channel(), 0);
+        acceptEvent = null;
+        TunnelPhaseEvent greetingEvent = TunnelTrace.begin(TunnelTrace.GREETING, ctx.channel());
         logger.info("收到SOCKS5初始握手请求 - 版本: {}, 提供的方法: {}", request.version(), request.authMethods().size());
 
         // 检查客户端是否支持无认证
@@ -48,7 +62,7 @@ public class Socks5HandshakeHandler extends ChannelInboundHandlerAdapter {
 
         // 发送无认证握手响应
         Socks5InitialResponse response = new DefaultSocks5InitialResponse(Socks5AuthMethod.NO_AUTH);
-        ctx.writeAndFlush(response);
+        ctx.writeAndFlush(response).addListener(f -> TunnelTrace.end(greetingEvent, null, ctx.channel(), 0));
 
         logger.info("SOCKS5无认证握手完成，添加命令处理器");
 
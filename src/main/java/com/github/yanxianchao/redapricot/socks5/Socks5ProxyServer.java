@@ -1,20 +1,37 @@
 package com.github.yanxianchao.redapricot.socks5;
 
+import com.github.yanxianchao.redapricot.http.Http2ProxyInitializer;
+import com.github.yanxianchao.redapricot.loop.LoadAwareChooserFactory;
+import com.github.yanxianchao.redapricot.mux.MuxSession;
+import com.github.yanxianchao.redapricot.startup.Readiness;
+import com.github.yanxianchao.redapricot.startup.StartupWarmer;
+import com.github.yanxianchao.redapricot.stats.TrafficAccounting;
+import com.github.yanxianchao.redapricot.tls.ReloadableSslContext;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.socksx.SocksPortUnificationServerHandler;
 import io.netty.handler.codec.socksx.v5.*;
 import io.netty.handler.logging.LogLevel;
+import io.netty.handler.ssl.ApplicationProtocolNames;
 import io.netty.handler.logging.LoggingHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.net.ssl.SSLException;
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+
 
 /**
  * SOCKS5 代理服务器
@@ -22,10 +39,40 @@ import org.slf4j.LoggerFactory;
 public class Socks5ProxyServer {
     private static final Logger logger = LoggerFactory.getLogger(Socks5ProxyServer.class);
 
+    // 是否使用融合的共享握手处理器（-Dredapricot.socks5.fused=true）
+    private static final boolean FUSED_HANDSHAKE = Boolean.getBoolean("redapricot.socks5.fused");
+
+    // SOCKS5-over-TLS监听端口，0表示不启用（-Dredapricot.tls.port=1443）
+    private static final int TLS_PORT = Integer.getInteger("redapricot.tls.port", 0);
+    private static final String TLS_CERT = System.getProperty("redapricot.tls.cert", "cert.pem");
+    private static final String TLS_KEY = System.getProperty("redapricot.tls.key", "key.pem");
+    private static final long TLS_SESSION_CACHE_SIZE = Long.getLong("redapricot.tls.sessionCacheSize", 20480);
+    private static final long TLS_SESSION_TIMEOUT = Long.getLong("redapricot.tls.sessionTimeout", 3600);
+
+    // HTTP/2 CONNECT代理监听端口，0表示不启用（-Dredapricot.h2.port=8443）
+    private static final int H2_PORT = Integer.getInteger("redapricot.h2.port", 0);
+    // HTTP/2监听是否使用TLS（h2），否则为h2c（-Dredapricot.h2.tls=true）
+    private static final boolean H2_TLS = Boolean.getBoolean("redapricot.h2.tls");
+
+    // 多路复用服务端监听端口，0表示不启用（-Dredapricot.mux.port=1090）
+    private static final int MUX_PORT = Integer.getInteger("redapricot.mux.port", 0);
+
+    // 透明代理监听端口，0表示不启用，仅Linux epoll（-Dredapricot.transparent.port=1081）
+    private static final int TRANSPARENT_PORT = Integer.getInteger("redapricot.transparent.port", 0);
+    // 透明代理使用TPROXY规则（IP_TRANSPARENT），否则按REDIRECT规则读取SO_ORIGINAL_DST
+    private static final boolean TRANSPARENT_TPROXY = Boolean.getBoolean("redapricot.transparent.tproxy");
+
+    // 监听端口绑定后建立的回环预热隧道数量，0表示不预热（-Dredapricot.startup.warmupTunnels=200）
+    private static final int WARMUP_TUNNELS = Integer.getInteger("redapricot.startup.warmupTunnels", 200);
+    private static final long WARMUP_TIMEOUT_MILLIS = 5000;
+
     private final String host = "0.0.0.0";
-    private final int port = 1080;
+    private final int port = Integer.getInteger("redapricot.socks5.port", 1080);
     private EventLoopGroup bossGroup;
     private EventLoopGroup workerGroup;
+    private EventLoopGroup transparentGroup;
+    private ReloadableSslContext sslContext;
+    private ReloadableSslContext h2SslContext;
     private volatile boolean running = false;
 
     public void run() throws Exception {
@@ -34,21 +81,26 @@ public class Socks5ProxyServer {
     }
 
 
-    public void start() throws InterruptedException {
+    public void start() throws InterruptedException, SSLException {
         bossGroup = new NioEventLoopGroup(8);
-        workerGroup = new NioEventLoopGroup(64);
+        workerGroup = LoadAwareChooserFactory.nioGroup(64);
 
         try {
+            // 绑定端口前并行完成初始化：连接管理器和DNS解析器、热启动快照、流量统计回放、事件循环线程和池化缓存
+            CompletableFuture.allOf(
+                    CompletableFuture.runAsync(() -> {
+                        Socks5ServerHandler.warmUp(WARMUP_TIMEOUT_MILLIS);
+                        Socks5ServerHandler.preTouchUpstream();
+                    }),
+                    CompletableFuture.runAsync(TrafficAccounting::init),
+                    CompletableFuture.runAsync(() -> StartupWarmer.preTouch(workerGroup))
+            ).join();
 
             ServerBootstrap bootstrap = new ServerBootstrap();
             bootstrap.group(bossGroup, workerGroup)
                     .channel(NioServerSocketChannel.class)
                     .childOption(ChannelOption.SO_KEEPALIVE, true)
                     .childOption(ChannelOption.TCP_NODELAY, true)
-                    .childOption(ChannelOption.SO_RCVBUF, 256 * 1024)
-                    .childOption(ChannelOption.SO_SNDBUF, 256 * 1024)
-                    .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, 
-                            new io.netty.channel.WriteBufferWaterMark(128 * 1024, 512 * 1024))
                     .childOption(ChannelOption.SO_LINGER, 0)
                     .childOption(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000)
                     .childOption(ChannelOption.ALLOW_HALF_CLOSURE, true)
@@ -56,31 +108,141 @@ public class Socks5ProxyServer {
                     .childOption(ChannelOption.MAX_MESSAGES_PER_READ, 16)
                     .option(ChannelOption.SO_BACKLOG, 1024)
                     .option(ChannelOption.SO_REUSEADDR, true)
-                    .childHandler(new ChannelInitializer<SocketChannel>() {
-                        @Override
-                        protected void initChannel(SocketChannel ch) throws Exception {
-                            // Debug 日志
-                            //ch.pipeline().addLast(new LoggingHandler(LogLevel.DEBUG));
-                            // SOCKS协议统一处理器
-                            ch.pipeline().addLast(new SocksPortUnificationServerHandler());
-                            // SOCKS5编码器
-                            //ch.pipeline().addLast(Socks5ServerEncoder.DEFAULT);
-                            // SOCKS5握手处理器（处理握手逻辑）
-                            ch.pipeline().addLast(new Socks5HandshakeHandler());
-                        }
-                    });
+                    .childHandler(newChildHandler(null));
+            // 套接字缓冲区和写水位按内存配置设置
+            MemoryProfile.current().applyChild(bootstrap);
+            MemoryProfile.current().install(workerGroup);
+
+            Channel tlsChannel = null;
+            if (TLS_PORT > 0) {
+                sslContext = new ReloadableSslContext(new File(TLS_CERT), new File(TLS_KEY),
+                        TLS_SESSION_CACHE_SIZE, TLS_SESSION_TIMEOUT);
+                tlsChannel = bootstrap.clone().childHandler(newChildHandler(sslContext))
+                        .bind(host, TLS_PORT).sync().channel();
+                logger.info("SOCKS5-over-TLS代理已启动，监听地址: {}", tlsChannel.localAddress());
+            }
+
+            Channel muxChannel = null;
+            if (MUX_PORT > 0) {
+                // 对端节点的多路复用连接，流上的CONNECT通过连接管理器连接目标
+                muxChannel = bootstrap.clone()
+                        .childHandler(MuxSession.serverInitializer((targetHost, targetPort) ->
+                                Socks5ServerHandler.connectTarget(targetHost, targetPort, null)))
+                        .bind(host, MUX_PORT).sync().channel();
+                logger.info("多路复用服务端已启动，监听地址: {}", muxChannel.localAddress());
+            }
+
+            Channel h2Channel = null;
+            if (H2_PORT > 0) {
+                if (H2_TLS) {
+                    h2SslContext = new ReloadableSslContext(new File(TLS_CERT), new File(TLS_KEY),
+                            TLS_SESSION_CACHE_SIZE, TLS_SESSION_TIMEOUT, ApplicationProtocolNames.HTTP_2);
+                }
+                h2Channel = bootstrap.clone()
+                        .childHandler(new Http2ProxyInitializer(h2SslContext, (targetHost, targetPort) ->
+                                Socks5ServerHandler.connectTarget(targetHost, targetPort, null)))
+                        .bind(host, H2_PORT).sync().channel();
+                logger.info("HTTP/2代理已启动（{}），监听地址: {}", H2_TLS ? "h2" : "h2c", h2Channel.localAddress());
+            }
+
+            Channel transparentChannel = null;
+            if (TRANSPARENT_PORT > 0) {
+                transparentChannel = bindTransparent();
+            }
 
             ChannelFuture future = bootstrap.bind(host, port).sync();
             running = true;
             logger.info("SOCKS5代理服务器已启动，监听地址: {}", future.channel().localAddress());
+            // 多路复用模式下目标由对端节点连接，本地回环隧道无法预热
+            if (WARMUP_TUNNELS > 0 && Socks5ServerHandler.muxClient() == null) {
+                StartupWarmer.warmTunnels(new InetSocketAddress("127.0.0.1", port), WARMUP_TUNNELS, WARMUP_TIMEOUT_MILLIS);
+            }
+            Readiness.markReady();
             // 等待服务器绑定端口完成
             future.channel().closeFuture().sync();
+            if (tlsChannel != null) {
+                tlsChannel.close();
+            }
+            if (muxChannel != null) {
+                muxChannel.close();
+            }
+            if (h2Channel != null) {
+                h2Channel.close();
+            }
+            if (transparentChannel != null) {
+                transparentChannel.close();
+            }
         } finally {
             running = false;
             stop();
         }
     }
 
+    /**
+     * 绑定透明代理监听端口
+     * 透明代理需要epoll原生传输读取原始目标地址，因此使用独立的epoll事件循环组
+     *
+     * @return 监听通道，当前平台不支持epoll时返回null
+     */
+    private Channel bindTransparent() throws InterruptedException {
+        if (!Epoll.isAvailable()) {
+            logger.warn("当前平台不支持epoll，透明代理未启用", Epoll.unavailabilityCause());
+            return null;
+        }
+        transparentGroup = LoadAwareChooserFactory.epollGroup(16);
+        ServerBootstrap bootstrap = new ServerBootstrap();
+        bootstrap.group(transparentGroup)
+                .channel(EpollServerSocketChannel.class)
+                .childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(ChannelOption.ALLOW_HALF_CLOSURE, true)
+                .option(ChannelOption.SO_BACKLOG, 1024)
+                .option(ChannelOption.SO_REUSEADDR, true)
+                .option(EpollChannelOption.IP_TRANSPARENT, TRANSPARENT_TPROXY)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(new TransparentProxyHandler(TRANSPARENT_TPROXY));
+                    }
+                });
+        MemoryProfile.current().applyChild(bootstrap);
+        MemoryProfile.current().install(transparentGroup);
+        Channel channel = bootstrap.bind(host, TRANSPARENT_PORT).sync().channel();
+        logger.info("透明代理已启动（{}），监听地址: {}", TRANSPARENT_TPROXY ? "TPROXY" : "REDIRECT", channel.localAddress());
+        return channel;
+    }
+
+    /**
+     * 创建子通道初始化器
+     *
+     * @param tls 不为null时先在管道最前面加入TLS处理器
+     */
+    private ChannelInitializer<SocketChannel> newChildHandler(ReloadableSslContext tls) {
+        return new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) throws Exception {
+                // 启动预热的回环连接不计入统计和计费
+                StartupWarmer.markIfWarmup(ch);
+                // Debug 日志
+                //ch.pipeline().addLast(new LoggingHandler(LogLevel.DEBUG));
+                if (tls != null) {
+                    ch.pipeline().addLast(tls.newHandler(ch.alloc()));
+                }
+                if (FUSED_HANDSHAKE) {
+                    // 融合握手处理器，直接解析问候和CONNECT请求
+                    ch.pipeline().addLast(Socks5FusedHandshakeHandler.INSTANCE);
+                    return;
+                }
+                // SOCKS协议统一处理器
+                ch.pipeline().addLast(new SocksPortUnificationServerHandler());
+                // SOCKS5编码器
+                //ch.pipeline().addLast(Socks5ServerEncoder.DEFAULT);
+                // SOCKS5握手处理器（处理握手逻辑）
+                ch.pipeline().addLast(new Socks5HandshakeHandler());
+            }
+        };
+    }
+
     public void stop() {
         if (!running) {
             return;
@@ -94,6 +256,15 @@ public class Socks5ProxyServer {
         if (workerGroup != null) {
             workerGroup.shutdownGracefully();
         }
+        if (transparentGroup != null) {
+            transparentGroup.shutdownGracefully();
+        }
+        if (sslContext != null) {
+            sslContext.shutdown();
+        }
+        if (h2SslContext != null) {
+            h2SslContext.shutdown();
+        }
 
         logger.info("SOCKS5代理服务器已关闭");
     }
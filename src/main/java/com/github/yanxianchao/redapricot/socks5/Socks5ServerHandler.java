@@ -1,8 +1,19 @@
 package com.github.yanxianchao.redapricot.socks5;
 
+import com.github.yanxianchao.redapricot.loop.LoadAwareChooserFactory;
+import com.github.yanxianchao.redapricot.mux.MuxClientPool;
+import com.github.yanxianchao.redapricot.mux.MuxStream;
+import com.github.yanxianchao.redapricot.startup.Readiness;
+import com.github.yanxianchao.redapricot.startup.StartupWarmer;
+import com.github.yanxianchao.redapricot.stats.HeavyHitters;
+import com.github.yanxianchao.redapricot.trace.TunnelPhaseEvent;
+import com.github.yanxianchao.redapricot.trace.TunnelTrace;
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
 import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.ByteToMessageDecoder;
 import io.netty.handler.codec.socksx.v5.*;
 import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.util.concurrent.Future;
@@ -14,6 +25,7 @@ import static io.netty.handler.codec.socksx.v5.Socks5CommandType.UDP_ASSOCIATE;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.net.InetSocketAddress;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
@@ -23,16 +35,42 @@ import java.util.concurrent.TimeUnit;
 public class Socks5ServerHandler extends SimpleChannelInboundHandler<Socks5CommandRequest> {
     private static final Logger logger = LoggerFactory.getLogger(Socks5ServerHandler.class);
     
+    // 连接目标期间最多缓冲的客户端早期数据，超过后暂停读取
+    static final int MAX_EARLY_DATA = 64 * 1024;
+    // 上游连接是否启用TCP Fast Open（-Dredapricot.upstream.tcpFastOpen=true，仅Linux epoll）
+    private static final boolean TCP_FAST_OPEN = Boolean.getBoolean("redapricot.upstream.tcpFastOpen");
+
+    // 热启动快照文件和写入间隔，未配置文件时不启用（-Dredapricot.snapshot.file=/var/lib/redapricot/warm.snapshot、
+    // -Dredapricot.snapshot.intervalSeconds）
+    private static final String SNAPSHOT_FILE = System.getProperty("redapricot.snapshot.file");
+    private static final long SNAPSHOT_INTERVAL_SECONDS = Long.getLong("redapricot.snapshot.intervalSeconds", 60);
+    // 启动时是否预连接热点目标（-Dredapricot.snapshot.preconnect=true）
+    private static final boolean SNAPSHOT_PRECONNECT = Boolean.getBoolean("redapricot.snapshot.preconnect");
+
+    // 多路复用模式下的对端节点地址，为空表示直接连接目标（-Dredapricot.mux.remote=host:port）
+    private static final String MUX_REMOTE = System.getProperty("redapricot.mux.remote");
+    private static final int MUX_CONNECTIONS = Integer.getInteger("redapricot.mux.connections", 4);
+
     // 全局连接管理器
     private static volatile OptimizedConnectionManager connectionManager;
+    private static volatile MuxClientPool muxClientPool;
     private static volatile ScheduledExecutorService cleanupExecutor;
+    private static volatile WarmStartSnapshot warmStartSnapshot;
     
     static {
         // 初始化连接管理器和清理任务
         if (connectionManager == null) {
             synchronized (Socks5ServerHandler.class) {
                 if (connectionManager == null) {
-                    connectionManager = new OptimizedConnectionManager(new io.netty.channel.nio.NioEventLoopGroup(32));
+                    if (TCP_FAST_OPEN && Epoll.isAvailable() && Epoll.isTcpFastOpenClientSideAvailable()) {
+                        logger.info("上游连接启用TCP Fast Open");
+                        connectionManager = new OptimizedConnectionManager(LoadAwareChooserFactory.epollGroup(32), true);
+                    } else {
+                        if (TCP_FAST_OPEN) {
+                            logger.warn("当前系统不支持客户端TCP Fast Open，使用普通连接");
+                        }
+                        connectionManager = new OptimizedConnectionManager(LoadAwareChooserFactory.nioGroup(32));
+                    }
                     cleanupExecutor = Executors.newSingleThreadScheduledExecutor();
                     // 每5分钟清理一次过期连接
                     cleanupExecutor.scheduleAtFixedRate(() -> {
@@ -42,11 +80,100 @@ public class Socks5ServerHandler extends SimpleChannelInboundHandler<Socks5Comma
                             logger.error("清理连接池时发生错误", e);
                         }
                     }, 5, 5, TimeUnit.MINUTES);
+                    // 在清理线程上定期写入热启动快照，不占用事件循环
+                    if (SNAPSHOT_FILE != null && !SNAPSHOT_FILE.isEmpty()) {
+                        warmStartSnapshot = new WarmStartSnapshot(new File(SNAPSHOT_FILE), connectionManager);
+                        cleanupExecutor.scheduleWithFixedDelay(Socks5ServerHandler::saveSnapshot,
+                                SNAPSHOT_INTERVAL_SECONDS, SNAPSHOT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+                        Runtime.getRuntime().addShutdownHook(new Thread(Socks5ServerHandler::saveSnapshot));
+                    }
+                    if (MUX_REMOTE != null && !MUX_REMOTE.isEmpty()) {
+                        int idx = MUX_REMOTE.lastIndexOf(':');
+                        muxClientPool = new MuxClientPool(MUX_REMOTE.substring(0, idx),
+                                Integer.parseInt(MUX_REMOTE.substring(idx + 1)), MUX_CONNECTIONS);
+                        muxClientPool.start();
+                    }
                 }
             }
         }
     }
 
+    /**
+     * 从热启动快照预热DNS缓存和热点目标，在监听端口绑定前调用，未启用快照时只完成初始化
+     */
+    static void warmUp(long timeoutMillis) {
+        if (warmStartSnapshot != null) {
+            warmStartSnapshot.restore(SNAPSHOT_PRECONNECT, timeoutMillis);
+        }
+    }
+
+    /**
+     * 启动上游事件循环线程并预热其池化缓存，在监听端口绑定前调用
+     */
+    static void preTouchUpstream() {
+        StartupWarmer.preTouch(connectionManager.eventLoopGroup());
+    }
+
+    private static void saveSnapshot() {
+        try {
+            warmStartSnapshot.save();
+        } catch (Exception e) {
+            logger.warn("写入热启动快照失败", e);
+        }
+    }
+
+    /**
+     * 多路复用客户端连接池，未启用时返回null
+     */
+    static MuxClientPool muxClient() {
+        return muxClientPool;
+    }
+
+    // 连接目标期间收到的客户端数据
+    private ByteBuf earlyData;
+    private boolean connecting;
+    // CONNECT请求到响应发出的阶段事件
+    private TunnelPhaseEvent connectEvent;
+    // 收到CONNECT请求的时间，用于统计就绪后第一个连接的建立耗时
+    private long connectStartNanos;
+
+    /**
+     * 通过全局连接管理器连接目标服务器
+     *
+     * @param initialData 需要先发送给目标服务器的早期数据，可为null
+     */
+    static Future<Channel> connectTarget(String host, int port, ByteBuf initialData) {
+        return connectionManager.getOrCreateConnection(host, port, initialData);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (connecting && msg instanceof ByteBuf) {
+            // 缓冲紧随CONNECT请求到达的数据，连接建立后转发
+            earlyData = earlyData == null ? (ByteBuf) msg
+                    : ByteToMessageDecoder.MERGE_CUMULATOR.cumulate(ctx.alloc(), earlyData, (ByteBuf) msg);
+            if (earlyData.readableBytes() >= MAX_EARLY_DATA) {
+                ctx.channel().config().setAutoRead(false);
+            }
+            return;
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        ByteBuf pending = takeEarlyData();
+        if (pending != null) {
+            pending.release();
+        }
+    }
+
+    private ByteBuf takeEarlyData() {
+        ByteBuf pending = earlyData;
+        earlyData = null;
+        return pending;
+    }
+
     @Override
     public void channelRead0(ChannelHandlerContext ctx, Socks5CommandRequest request) throws Exception {
         Socks5CommandType type = request.type();
@@ -62,51 +189,147 @@ public class Socks5ServerHandler extends SimpleChannelInboundHandler<Socks5Comma
 
     private void handleConnectCommand(ChannelHandlerContext ctx, Socks5CommandRequest request) {
         logger.info("处理CONNECT命令 - 目标地址: {}:{}", request.dstAddr(), request.dstPort());
+        connecting = true;
+        connectStartNanos = System.nanoTime();
+        connectEvent = TunnelTrace.begin(TunnelTrace.CONNECT, ctx.channel());
+        String clientKey = HeavyHitters.clientKey(ctx.channel().remoteAddress());
+        String destinationKey = request.dstAddr() + ":" + request.dstPort();
+        if (!StartupWarmer.isWarmup(ctx.channel())) {
+            HeavyHitters.recordConnect(ctx.executor(), clientKey, destinationKey);
+        }
 
-        // 使用优化的连接管理器
-        Future<Channel> connectionFuture = connectionManager.getOrCreateConnection(request.dstAddr(), request.dstPort());
-        connectionFuture.addListener((Future<Channel> f) -> {
-            if (f.isSuccess()) {
-                Channel targetChannel = f.getNow();
-                logger.info("成功连接到目标服务器: {}:{}", request.dstAddr(), request.dstPort());
-                
-                // 发送成功响应 - 使用正确的目标地址
-                Socks5CommandResponse response = new DefaultSocks5CommandResponse(
-                    Socks5CommandStatus.SUCCESS,
-                    request.dstAddrType(),
-                    request.dstAddr(),
-                    request.dstPort()
-                );
-                ctx.writeAndFlush(response);
-
-                // 为目标服务器通道添加RelayHandler，指向客户端通道
-                targetChannel.pipeline().addLast(new RelayHandler(ctx.channel()));
-                
-                // 为客户端通道添加RelayHandler，指向目标服务器通道（客户端->服务器方向）
-                ctx.pipeline().addLast(new RelayHandler(targetChannel));
-
-                logger.info("SOCKS5连接建立，开始双向数据转发");
-
-                // 移除 SOCKS5 协议处理器（保留relay和数据传输）
-                if (ctx.pipeline().get("SOCKS5_COMMAND_DECODER") != null) {
-                    ctx.pipeline().remove("SOCKS5_COMMAND_DECODER");
-                }
-                if (ctx.pipeline().get("SOCKS5_COMMAND_HANDLER") != null) {
-                    ctx.pipeline().remove("SOCKS5_COMMAND_HANDLER");
-                }
-            } else {
-                logger.error("连接目标服务器失败: {}:{}", request.dstAddr(), request.dstPort(), f.cause());
-                
-                // 发送失败响应
-                Socks5CommandResponse response = new DefaultSocks5CommandResponse(
-                    Socks5CommandStatus.FAILURE, 
-                    request.dstAddrType()
-                );
-                ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        // 推迟到下一个任务再发起连接，使同一次读取中紧随CONNECT请求的数据先进入缓冲区
+        ctx.executor().execute(() -> {
+            if (!ctx.channel().isActive()) {
+                return;
             }
+            // 多路复用模式下在到对端节点的长连接上打开流
+            if (muxClientPool != null) {
+                muxClientPool.openStream(request.dstAddr(), request.dstPort()).addListener((Future<MuxStream> f) -> {
+                    if (ctx.executor().inEventLoop()) {
+                        onMuxStreamOpened(ctx, request, f, clientKey, destinationKey);
+                    } else {
+                        ctx.executor().execute(() -> onMuxStreamOpened(ctx, request, f, clientKey, destinationKey));
+                    }
+                });
+                return;
+            }
+            // 使用优化的连接管理器
+            Future<Channel> connectionFuture = connectTarget(request.dstAddr(), request.dstPort(), takeEarlyData());
+            connectionFuture.addListener((Future<Channel> f) -> {
+                if (ctx.executor().inEventLoop()) {
+                    onConnectComplete(ctx, request, f, clientKey, destinationKey);
+                } else {
+                    ctx.executor().execute(() -> onConnectComplete(ctx, request, f, clientKey, destinationKey));
+                }
+            });
         });
     }
 
+    private void onConnectComplete(ChannelHandlerContext ctx, Socks5CommandRequest request, Future<Channel> f,
+                                   String clientKey, String destinationKey) {
+        if (f.isSuccess()) {
+            Channel targetChannel = f.getNow();
+            if (!ctx.channel().isActive() || ctx.isRemoved()) {
+                logger.debug("客户端在连接建立前已断开: {}:{}", request.dstAddr(), request.dstPort());
+                targetChannel.close();
+                return;
+            }
+            logger.info("成功连接到目标服务器: {}:{}", request.dstAddr(), request.dstPort());
+
+            sendSuccessResponse(ctx, request);
+
+            // 为目标服务器通道添加RelayHandler，指向客户端通道
+            targetChannel.pipeline().addLast(new RelayHandler(ctx.channel(), clientKey, destinationKey));
+
+            // 为客户端通道添加RelayHandler，指向目标服务器通道（客户端->服务器方向）
+            ctx.pipeline().addLast(new RelayHandler(targetChannel, clientKey, destinationKey));
+
+            // 发送连接建立期间缓冲的早期数据
+            ByteBuf pending = takeEarlyData();
+            if (pending != null) {
+                targetChannel.writeAndFlush(pending);
+            }
+            // 中继处理器就位后再读取目标的数据
+            targetChannel.config().setAutoRead(true);
+
+            logger.info("SOCKS5连接建立，开始双向数据转发");
+            finishHandshake(ctx);
+        } else {
+            logger.error("连接目标服务器失败: {}:{}", request.dstAddr(), request.dstPort(), f.cause());
+            sendFailureResponse(ctx, request);
+        }
+    }
+
+    private void onMuxStreamOpened(ChannelHandlerContext ctx, Socks5CommandRequest request, Future<MuxStream> f,
+                                   String clientKey, String destinationKey) {
+        if (!f.isSuccess()) {
+            logger.error("多路复用流打开失败: {}:{}", request.dstAddr(), request.dstPort(), f.cause());
+            sendFailureResponse(ctx, request);
+            return;
+        }
+        MuxStream stream = f.getNow();
+        if (!ctx.channel().isActive() || ctx.isRemoved()) {
+            stream.close();
+            return;
+        }
+        sendSuccessResponse(ctx, request);
+
+        // 客户端通道与多路复用流双向转发
+        stream.attach(ctx.channel(), clientKey, destinationKey);
+        ByteBuf pending = takeEarlyData();
+        if (pending != null) {
+            stream.write(pending);
+        }
+
+        logger.info("SOCKS5多路复用流建立，开始双向数据转发: {}:{}", request.dstAddr(), request.dstPort());
+        finishHandshake(ctx);
+    }
+
+    private void sendSuccessResponse(ChannelHandlerContext ctx, Socks5CommandRequest request) {
+        // 发送成功响应 - 使用正确的目标地址
+        Socks5CommandResponse response = new DefaultSocks5CommandResponse(
+            Socks5CommandStatus.SUCCESS,
+            request.dstAddrType(),
+            request.dstAddr(),
+            request.dstPort()
+        );
+        ctx.writeAndFlush(response);
+        endConnectPhase(ctx, request);
+        Readiness.recordFirstConnection(connectStartNanos);
+    }
+
+    private void endConnectPhase(ChannelHandlerContext ctx, Socks5CommandRequest request) {
+        TunnelTrace.end(connectEvent, request.dstAddr() + ":" + request.dstPort(), ctx.channel(), 0);
+        connectEvent = null;
+    }
+
+    private void sendFailureResponse(ChannelHandlerContext ctx, Socks5CommandRequest request) {
+        connecting = false;
+
+        // 发送失败响应
+        Socks5CommandResponse response = new DefaultSocks5CommandResponse(
+            Socks5CommandStatus.FAILURE, 
+            request.dstAddrType()
+        );
+        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        endConnectPhase(ctx, request);
+    }
+
+    /**
+     * 中继已就绪，移除 SOCKS5 协议处理器（保留relay和数据传输）并恢复读取
+     */
+    private void finishHandshake(ChannelHandlerContext ctx) {
+        connecting = false;
+        if (ctx.pipeline().get("SOCKS5_COMMAND_DECODER") != null) {
+            ctx.pipeline().remove("SOCKS5_COMMAND_DECODER");
+        }
+        if (ctx.pipeline().get("SOCKS5_COMMAND_HANDLER") != null) {
+            ctx.pipeline().remove("SOCKS5_COMMAND_HANDLER");
+        }
+        ctx.channel().config().setAutoRead(true);
+    }
+
     private void handleUdpAssociateCommand(ChannelHandlerContext ctx, Socks5CommandRequest request) {
         logger.info("处理UDP_ASSOCIATE命令");
         
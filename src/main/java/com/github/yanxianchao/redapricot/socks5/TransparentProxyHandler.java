@@ -0,0 +1,189 @@
+package com.github.yanxianchao.redapricot.socks5;
+
+import com.github.yanxianchao.redapricot.stats.HeavyHitters;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.unix.RawUnixChannelOption;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.util.NetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+/**
+ * 透明代理处理器
+ * 连接建立时直接恢复原始目标地址，不进行SOCKS5协商：
+ * REDIRECT规则通过SO_ORIGINAL_DST读取，TPROXY规则下套接字的本地地址即为原始目标地址
+ */
+public class TransparentProxyHandler extends ChannelInboundHandlerAdapter {
+    private static final Logger logger = LoggerFactory.getLogger(TransparentProxyHandler.class);
+
+    // getsockopt(SOL_IP, SO_ORIGINAL_DST)，返回struct sockaddr_in
+    private static final RawUnixChannelOption SO_ORIGINAL_DST =
+            new RawUnixChannelOption("SO_ORIGINAL_DST", 0, 80, 16);
+    // getsockopt(SOL_IPV6, IP6T_SO_ORIGINAL_DST)，返回struct sockaddr_in6
+    private static final RawUnixChannelOption IP6T_SO_ORIGINAL_DST =
+            new RawUnixChannelOption("IP6T_SO_ORIGINAL_DST", 41, 80, 28);
+
+    private final boolean tproxy;
+    private ByteBuf earlyData;
+
+    /**
+     * @param tproxy 监听套接字是否以IP_TRANSPARENT方式接收TPROXY流量
+     */
+    public TransparentProxyHandler(boolean tproxy) {
+        this.tproxy = tproxy;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        InetSocketAddress destination = originalDestination(ctx.channel());
+        if (destination == null) {
+            ctx.close();
+            return;
+        }
+
+        String host = NetUtil.toAddressString(destination.getAddress());
+        int port = destination.getPort();
+        logger.debug("透明代理连接 - 目标地址: {}:{}", host, port);
+        String clientKey = HeavyHitters.clientKey(ctx.channel().remoteAddress());
+        String destinationKey = host + ":" + port;
+        HeavyHitters.recordConnect(ctx.executor(), clientKey, destinationKey);
+
+        // 不等待客户端数据立即连接目标，服务端先发言的协议（SSH、SMTP等）同样可用
+        Socks5ServerHandler.connectTarget(host, port, null).addListener((Future<Channel> f) -> {
+            if (ctx.executor().inEventLoop()) {
+                onConnectComplete(ctx, f, host, port, clientKey, destinationKey);
+            } else {
+                ctx.executor().execute(() -> onConnectComplete(ctx, f, host, port, clientKey, destinationKey));
+            }
+        });
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (!(msg instanceof ByteBuf)) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        // 缓冲连接建立期间到达的数据，连接建立后转发
+        earlyData = earlyData == null ? (ByteBuf) msg
+                : ByteToMessageDecoder.MERGE_CUMULATOR.cumulate(ctx.alloc(), earlyData, (ByteBuf) msg);
+        if (earlyData.readableBytes() >= Socks5ServerHandler.MAX_EARLY_DATA) {
+            ctx.channel().config().setAutoRead(false);
+        }
+    }
+
+    private InetSocketAddress originalDestination(Channel channel) {
+        InetSocketAddress local = (InetSocketAddress) channel.localAddress();
+        if (tproxy) {
+            if (isListenerAddress(channel, local)) {
+                // 直接连到监听地址而非经过TPROXY规则的连接，转发会连回自身
+                logger.warn("透明代理收到直连监听地址的连接，已拒绝: {}", channel.remoteAddress());
+                return null;
+            }
+            return local;
+        }
+        try {
+            boolean ipv4 = local.getAddress() instanceof Inet4Address;
+            ByteBuffer sockaddr = channel.config().getOption(ipv4 ? SO_ORIGINAL_DST : IP6T_SO_ORIGINAL_DST);
+            // sin_family(2) sin_port(2，网络字节序) 之后是地址；sockaddr_in6还有4字节的sin6_flowinfo
+            int port = sockaddr.getShort(2) & 0xFFFF;
+            byte[] address = new byte[ipv4 ? 4 : 16];
+            sockaddr.position(ipv4 ? 4 : 8);
+            sockaddr.get(address);
+            InetSocketAddress destination = new InetSocketAddress(InetAddress.getByAddress(address), port);
+            if (destination.equals(local)) {
+                // 没有经过REDIRECT规则的直连，转发会连回自身
+                logger.warn("透明代理收到未重定向的连接，已拒绝: {}", channel.remoteAddress());
+                return null;
+            }
+            return destination;
+        } catch (Exception e) {
+            logger.warn("读取原始目标地址失败: {}", channel.remoteAddress(), e);
+            return null;
+        }
+    }
+
+    /**
+     * TPROXY模式下判断本地地址是否就是监听地址；监听通配地址时，端口相同且本地地址属于本机即视为监听地址
+     */
+    private static boolean isListenerAddress(Channel channel, InetSocketAddress local) {
+        if (channel.parent() == null || !(channel.parent().localAddress() instanceof InetSocketAddress)) {
+            return false;
+        }
+        InetSocketAddress listener = (InetSocketAddress) channel.parent().localAddress();
+        if (listener.getPort() != local.getPort()) {
+            return false;
+        }
+        if (!listener.getAddress().isAnyLocalAddress()) {
+            return listener.getAddress().equals(local.getAddress());
+        }
+        try {
+            return local.getAddress().isLoopbackAddress() || NetworkInterface.getByInetAddress(local.getAddress()) != null;
+        } catch (SocketException e) {
+            return true;
+        }
+    }
+
+    private void onConnectComplete(ChannelHandlerContext ctx, Future<Channel> f, String host, int port,
+                                   String clientKey, String destinationKey) {
+        Channel clientChannel = ctx.channel();
+        if (!f.isSuccess()) {
+            logger.error("连接目标服务器失败: {}:{}", host, port, f.cause());
+            ctx.close();
+            return;
+        }
+
+        Channel targetChannel = f.getNow();
+        if (!clientChannel.isActive() || ctx.isRemoved()) {
+            logger.debug("客户端在连接建立前已断开: {}:{}", host, port);
+            targetChannel.close();
+            return;
+        }
+
+        targetChannel.pipeline().addLast(new RelayHandler(clientChannel, clientKey, destinationKey));
+        ctx.pipeline().addLast(new RelayHandler(targetChannel, clientKey, destinationKey));
+
+        ByteBuf pending = earlyData;
+        earlyData = null;
+        if (pending != null) {
+            ctx.fireChannelRead(pending);
+        }
+        ctx.pipeline().remove(this);
+        clientChannel.config().setAutoRead(true);
+        // 中继处理器就位后再读取目标的数据
+        targetChannel.config().setAutoRead(true);
+        logger.debug("透明代理连接建立，开始双向数据转发: {}:{}", host, port);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        if (earlyData != null) {
+            earlyData.release();
+            earlyData = null;
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        if (cause instanceof IOException) {
+            logger.debug("透明代理网络异常: {}", cause.getMessage());
+        } else {
+            logger.error("透明代理处理器发生异常", cause);
+        }
+        ctx.close();
+    }
+}
@@ -0,0 +1,145 @@
+package com.github.yanxianchao.redapricot.socks5;
+
+import com.github.yanxianchao.redapricot.stats.HeavyHitters;
+import io.netty.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 热启动快照
+ * 定期把DNS缓存（含剩余TTL）和热点目标地址写入本地文件，启动时读取并预热
+ */
+public class WarmStartSnapshot {
+    private static final Logger logger = LoggerFactory.getLogger(WarmStartSnapshot.class);
+
+    private static final int MAGIC = 0x52414453;
+    private static final int VERSION = 1;
+    private static final int HOT_DESTINATIONS = 64;
+
+    private final File file;
+    private final OptimizedConnectionManager connectionManager;
+
+    public WarmStartSnapshot(File file, OptimizedConnectionManager connectionManager) {
+        this.file = file;
+        this.connectionManager = connectionManager;
+    }
+
+    /**
+     * 写入快照，先写临时文件再原子替换，不能在事件循环线程上调用
+     */
+    public void save() throws IOException {
+        long now = System.currentTimeMillis();
+        List<Map.Entry<String, OptimizedConnectionManager.CachedAddress>> entries = new ArrayList<>();
+        for (Map.Entry<String, OptimizedConnectionManager.CachedAddress> entry : connectionManager.dnsCacheView().entrySet()) {
+            if (entry.getValue().expiresAt() > now) {
+                entries.add(entry);
+            }
+        }
+        List<String> hotDestinations = new ArrayList<>(HeavyHitters.topDestinations(HOT_DESTINATIONS));
+        // 回环目标（包括启动预热用的本地隧道）预连接没有收益，不写入快照
+        hotDestinations.removeIf(destination -> destination.startsWith("127.") || destination.startsWith("localhost:"));
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(now);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, OptimizedConnectionManager.CachedAddress> entry : entries) {
+                byte[] address = entry.getValue().address().getAddress();
+                out.writeUTF(entry.getKey());
+                out.writeByte(address.length);
+                out.write(address);
+                out.writeLong(entry.getValue().expiresAt() - now);
+            }
+            out.writeInt(hotDestinations.size());
+            for (String destination : hotDestinations) {
+                out.writeUTF(destination);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.debug("热启动快照已写入: {} DNS缓存, {} 热点目标", entries.size(), hotDestinations.size());
+    }
+
+    /**
+     * 读取快照并预热：恢复未过期的DNS缓存，重新解析已过期的条目和热点目标，可选预连接热点目标
+     *
+     * @param preconnect 是否预先建立到热点目标的连接
+     * @param timeoutMillis 等待预热完成的最长时间
+     */
+    public void restore(boolean preconnect, long timeoutMillis) {
+        if (!file.isFile()) {
+            logger.info("未找到热启动快照: {}", file);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        int restored = 0;
+        List<Future<?>> pending = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                logger.warn("热启动快照格式不匹配，忽略: {}", file);
+                return;
+            }
+            long elapsed = now - in.readLong();
+            int dnsCount = in.readInt();
+            for (int i = 0; i < dnsCount; i++) {
+                String host = in.readUTF();
+                byte[] address = new byte[in.readUnsignedByte()];
+                in.readFully(address);
+                long remaining = in.readLong() - elapsed;
+                if (remaining > 0) {
+                    connectionManager.restoreDnsEntry(host, InetAddress.getByAddress(host, address), now + remaining);
+                    restored++;
+                } else {
+                    pending.add(connectionManager.resolveDns(host));
+                }
+            }
+            int hotCount = in.readInt();
+            for (int i = 0; i < hotCount; i++) {
+                String destination = in.readUTF();
+                int idx = destination.lastIndexOf(':');
+                if (idx <= 0) {
+                    continue;
+                }
+                String host = destination.substring(0, idx);
+                if (preconnect) {
+                    pending.add(connectionManager.preconnect(host, Integer.parseInt(destination.substring(idx + 1))));
+                } else {
+                    pending.add(connectionManager.resolveDns(host));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("读取热启动快照失败: {}", file, e);
+        }
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        int completed = 0;
+        for (Future<?> future : pending) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                break;
+            }
+            if (future.awaitUninterruptibly(wait, TimeUnit.MILLISECONDS) && future.isSuccess()) {
+                completed++;
+            }
+        }
+        logger.info("热启动预热完成 - 恢复DNS缓存: {}, 预解析/预连接成功: {}/{}", restored, completed, pending.size());
+    }
+}
@@ -0,0 +1,104 @@
+package com.github.yanxianchao.redapricot.startup;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 启动就绪信号
+ * 监听端口绑定并预热完成后才标记就绪：写入就绪文件并使管理端点的 /ready 返回200；
+ * 同时记录从JVM启动到就绪的耗时和就绪后第一个连接的建立耗时
+ */
+public final class Readiness {
+    private static final Logger logger = LoggerFactory.getLogger(Readiness.class);
+
+    // 就绪文件，未配置时不写入（-Dredapricot.ready.file=/run/redapricot.ready）
+    private static final String READY_FILE = System.getProperty("redapricot.ready.file");
+
+    private static final AtomicBoolean firstConnectionRecorded = new AtomicBoolean();
+    private static volatile boolean ready;
+    private static volatile long timeToReadyMillis = -1;
+    private static volatile long firstConnectionMicros = -1;
+
+    private Readiness() {
+    }
+
+    public static boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 启动开始时调用，删除上次异常退出遗留的就绪文件
+     */
+    public static void markStarting() {
+        ready = false;
+        if (READY_FILE == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(Paths.get(READY_FILE));
+        } catch (IOException e) {
+            logger.warn("删除遗留的就绪文件失败: {}", READY_FILE, e);
+        }
+    }
+
+    /**
+     * 标记就绪，只在所有监听端口绑定并预热完成后调用
+     */
+    public static void markReady() {
+        timeToReadyMillis = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        ready = true;
+        if (READY_FILE != null) {
+            writeReadyFile(Paths.get(READY_FILE));
+        }
+        logger.info("代理服务器启动完成，JVM启动到就绪耗时: {} ms", timeToReadyMillis);
+    }
+
+    /**
+     * 记录就绪后第一个连接从CONNECT请求到响应的耗时，之后的调用直接返回
+     */
+    public static void recordFirstConnection(long startNanos) {
+        if (!ready || firstConnectionRecorded.get() || !firstConnectionRecorded.compareAndSet(false, true)) {
+            return;
+        }
+        firstConnectionMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        logger.info("就绪后第一个连接建立耗时: {} us", firstConnectionMicros);
+    }
+
+    /**
+     * 启动状态报告
+     */
+    public static String report() {
+        if (!ready) {
+            return "starting\n";
+        }
+        return "ready\ntimeToReadyMillis=" + timeToReadyMillis + "\nfirstConnectionMicros=" + firstConnectionMicros + "\n";
+    }
+
+    private static void writeReadyFile(Path path) {
+        try {
+            Path tmp = Paths.get(path + ".tmp");
+            Files.write(tmp, ("timeToReadyMillis=" + timeToReadyMillis + "\n").getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // 进程退出时删除就绪文件，避免被当作仍然就绪
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    // 忽略异常
+                }
+            }, "ready-file-cleanup"));
+        } catch (IOException e) {
+            logger.error("写入就绪文件失败: {}", path, e);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.github.yanxianchao.redapricot.startup;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 启动预热
+ * 预先启动事件循环线程并填充池化分配器的线程缓存；
+ * 监听端口绑定后通过并发的回环隧道走完整的SOCKS5握手、上游连接和中继路径，让类加载和JIT在接收真实流量前完成；
+ * 预热连接在代理一侧带有标记，不计入统计和计费
+ */
+public final class StartupWarmer {
+    private static final Logger logger = LoggerFactory.getLogger(StartupWarmer.class);
+
+    // 预热时分配的缓冲区大小，覆盖握手报文到中继读取的常见大小
+    private static final int[] PRE_TOUCH_SIZES = {64, 512, 2048, 8192, 65536};
+    private static final int PAYLOAD_SIZE = 16 * 1024;
+
+    private static final AttributeKey<Boolean> WARMUP = AttributeKey.valueOf(StartupWarmer.class, "WARMUP");
+    // 正在预热的客户端本地地址，代理接受连接时据此识别预热连接
+    private static final Set<SocketAddress> warmupClients = ConcurrentHashMap.newKeySet();
+
+    private StartupWarmer() {
+    }
+
+    /**
+     * 在事件循环组的每个线程上分配并释放一轮缓冲区，启动线程并建立线程缓存
+     */
+    public static void preTouch(EventLoopGroup group) {
+        List<Future<?>> futures = new ArrayList<>();
+        for (EventExecutor executor : group) {
+            futures.add(executor.submit(() -> {
+                for (int size : PRE_TOUCH_SIZES) {
+                    PooledByteBufAllocator.DEFAULT.directBuffer(size).release();
+                    PooledByteBufAllocator.DEFAULT.heapBuffer(size).release();
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.awaitUninterruptibly();
+        }
+    }
+
+    /**
+     * 代理接受的连接是否来自启动预热，预热隧道不计入热点统计、流量计费和JFR阶段追踪
+     */
+    public static boolean isWarmup(Channel channel) {
+        return channel != null && Boolean.TRUE.equals(channel.attr(WARMUP).get());
+    }
+
+    /**
+     * 代理接受连接时调用：远端地址是预热客户端时给通道打上预热标记
+     */
+    public static void markIfWarmup(Channel accepted) {
+        if (!warmupClients.isEmpty() && warmupClients.remove(accepted.remoteAddress())) {
+            accepted.attr(WARMUP).set(Boolean.TRUE);
+        }
+    }
+
+    /**
+     * 并发建立回环隧道：客户端 -> 代理 -> 本地回显服务
+     * 客户端先绑定本地端口并登记，代理据此识别预热连接；
+     * 全部隧道的客户端收到回显、回显服务一侧也关闭后结束
+     *
+     * @param proxy         已绑定的SOCKS5监听地址
+     * @param tunnels       隧道数量
+     * @param timeoutMillis 整批隧道的超时时间，超时后不再等待
+     */
+    public static void warmTunnels(InetSocketAddress proxy, int tunnels, long timeoutMillis) {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        EventLoopGroup group = new NioEventLoopGroup(1);
+        CountDownLatch sinkClosed = new CountDownLatch(tunnels);
+        List<Promise<Void>> promises = new ArrayList<>(tunnels);
+        int completed = 0;
+        try {
+            Channel sink = new ServerBootstrap()
+                    .group(group)
+                    .channel(NioServerSocketChannel.class)
+                    .childHandler(new EchoHandler(sinkClosed))
+                    .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+            int sinkPort = ((InetSocketAddress) sink.localAddress()).getPort();
+
+            Bootstrap client = new Bootstrap()
+                    .group(group)
+                    .channel(NioSocketChannel.class)
+                    .option(ChannelOption.TCP_NODELAY, true);
+            for (int i = 0; i < tunnels; i++) {
+                Promise<Void> done = group.next().newPromise();
+                promises.add(done);
+                client.clone().handler(new WarmupClientHandler(sinkPort, done))
+                        .bind(new InetSocketAddress("127.0.0.1", 0))
+                        .addListener((ChannelFuture bound) -> {
+                            if (!bound.isSuccess()) {
+                                done.tryFailure(bound.cause());
+                                return;
+                            }
+                            SocketAddress local = bound.channel().localAddress();
+                            warmupClients.add(local);
+                            bound.channel().connect(proxy).addListener((ChannelFuture f) -> {
+                                if (!f.isSuccess()) {
+                                    warmupClients.remove(local);
+                                    done.tryFailure(f.cause());
+                                }
+                            });
+                        });
+            }
+            Throwable failure = null;
+            for (Promise<Void> done : promises) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || !done.await(remaining, TimeUnit.NANOSECONDS)) {
+                    break;
+                }
+                if (done.isSuccess()) {
+                    completed++;
+                } else if (failure == null) {
+                    failure = done.cause();
+                }
+            }
+            if (completed < tunnels) {
+                logger.warn("部分启动预热隧道未完成: {}/{}", completed, tunnels, failure);
+            }
+            // 等待回显服务一侧关闭，让代理走完中继的关闭路径
+            sinkClosed.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            sink.close().sync();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            warmupClients.clear();
+            group.shutdownGracefully();
+        }
+        logger.info("启动预热完成: {} 条回环隧道, 耗时 {} ms", completed,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * 回显服务，所有子连接共用一个实例，子连接关闭时计数
+     */
+    @ChannelHandler.Sharable
+    private static final class EchoHandler extends ChannelInboundHandlerAdapter {
+        private final CountDownLatch closed;
+
+        EchoHandler(CountDownLatch closed) {
+            this.closed = closed;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ctx.writeAndFlush(msg);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            closed.countDown();
+        }
+    }
+
+    /**
+     * 预热客户端：问候 -> CONNECT -> 发送数据并等待全部回显 -> 关闭
+     */
+    private static final class WarmupClientHandler extends ChannelInboundHandlerAdapter {
+        private static final int STATE_GREETING = 0;
+        private static final int STATE_CONNECT = 1;
+        private static final int STATE_RELAY = 2;
+
+        private final int sinkPort;
+        private final Promise<Void> done;
+        private int state = STATE_GREETING;
+        private int received;
+        private ByteBuf cumulation;
+
+        WarmupClientHandler(int sinkPort, Promise<Void> done) {
+            this.sinkPort = sinkPort;
+            this.done = done;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            ctx.writeAndFlush(Unpooled.wrappedBuffer(new byte[]{0x05, 0x01, 0x00}));
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ByteBuf in = (ByteBuf) msg;
+            try {
+                if (state == STATE_RELAY) {
+                    received += in.readableBytes();
+                    if (received >= PAYLOAD_SIZE) {
+                        ctx.close();
+                        done.trySuccess(null);
+                    }
+                    return;
+                }
+                if (cumulation == null) {
+                    cumulation = ctx.alloc().buffer();
+                }
+                cumulation.writeBytes(in);
+            } finally {
+                ReferenceCountUtil.release(in);
+            }
+
+            if (state == STATE_GREETING && cumulation.readableBytes() >= 2) {
+                if (cumulation.getByte(cumulation.readerIndex() + 1) != 0x00) {
+                    fail(ctx, "greeting rejected");
+                    return;
+                }
+                cumulation.skipBytes(2);
+                state = STATE_CONNECT;
+                ctx.writeAndFlush(Unpooled.wrappedBuffer(new byte[]{0x05, 0x01, 0x00, 0x01, 127, 0, 0, 1,
+                        (byte) (sinkPort >> 8), (byte) sinkPort}));
+            }
+            if (state == STATE_CONNECT && cumulation.readableBytes() >= 10) {
+                if (cumulation.getByte(cumulation.readerIndex() + 1) != 0x00) {
+                    fail(ctx, "connect rejected");
+                    return;
+                }
+                cumulation.release();
+                cumulation = null;
+                state = STATE_RELAY;
+                ctx.writeAndFlush(ctx.alloc().buffer(PAYLOAD_SIZE).writeZero(PAYLOAD_SIZE));
+            }
+        }
+
+        private void fail(ChannelHandlerContext ctx, String reason) {
+            done.tryFailure(new IllegalStateException(reason));
+            ctx.close();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if (cumulation != null) {
+                cumulation.release();
+                cumulation = null;
+            }
+            done.tryFailure(new IllegalStateException("closed before warm-up completed"));
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            done.tryFailure(cause);
+            ctx.close();
+        }
+    }
+}
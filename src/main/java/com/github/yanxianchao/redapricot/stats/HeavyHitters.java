@@ -0,0 +1,114 @@
+package com.github.yanxianchao.redapricot.stats;
+
+import io.netty.util.concurrent.EventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 目标地址和客户端的热点统计
+ * 分别按连接数和字节数保留近似Top-N，计数每个窗口衰减一半
+ */
+public final class HeavyHitters {
+    private static final Logger logger = LoggerFactory.getLogger(HeavyHitters.class);
+
+    private static final int CAPACITY = 128;
+    // 衰减窗口（-Dredapricot.stats.windowSeconds=60）
+    private static final long WINDOW_SECONDS = Long.getLong("redapricot.stats.windowSeconds", 60);
+
+    private static final StripedTopK destinationConnections = new StripedTopK(CAPACITY);
+    private static final StripedTopK destinationBytes = new StripedTopK(CAPACITY);
+    private static final StripedTopK clientConnections = new StripedTopK(CAPACITY);
+    private static final StripedTopK clientBytes = new StripedTopK(CAPACITY);
+
+    static {
+        ScheduledExecutorService decayExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "heavy-hitters-decay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        decayExecutor.scheduleAtFixedRate(() -> {
+            try {
+                destinationConnections.decay();
+                destinationBytes.decay();
+                clientConnections.decay();
+                clientBytes.decay();
+            } catch (Exception e) {
+                logger.error("热点统计衰减时发生错误", e);
+            }
+        }, WINDOW_SECONDS, WINDOW_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private HeavyHitters() {
+    }
+
+    /**
+     * 记录一次CONNECT请求
+     *
+     * @param loop 连接所在的事件循环，计数写入该事件循环独占的分段
+     */
+    public static void recordConnect(EventExecutor loop, String client, String destination) {
+        destinationConnections.add(loop, destination, 1);
+        clientConnections.add(loop, client, 1);
+    }
+
+    /**
+     * 记录中继的字节数
+     *
+     * @param loop 连接所在的事件循环，计数写入该事件循环独占的分段
+     */
+    public static void recordBytes(EventExecutor loop, String client, String destination, long bytes) {
+        destinationBytes.add(loop, destination, bytes);
+        clientBytes.add(loop, client, bytes);
+    }
+
+    /**
+     * 按连接数排序的热点目标地址（host:port）
+     */
+    public static List<String> topDestinations(int n) {
+        List<String> destinations = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : destinationConnections.top(n)) {
+            destinations.add(entry.getKey());
+        }
+        return destinations;
+    }
+
+    /**
+     * 客户端统计键：客户端IP
+     */
+    public static String clientKey(SocketAddress address) {
+        if (address instanceof InetSocketAddress) {
+            InetSocketAddress inetAddress = (InetSocketAddress) address;
+            return inetAddress.getAddress() != null ? inetAddress.getAddress().getHostAddress() : inetAddress.getHostString();
+        }
+        return String.valueOf(address);
+    }
+
+    /**
+     * 生成文本格式的热点报告
+     */
+    public static String report(int n) {
+        StringBuilder sb = new StringBuilder();
+        appendSection(sb, "destinations by connections", destinationConnections.top(n));
+        appendSection(sb, "destinations by bytes", destinationBytes.top(n));
+        appendSection(sb, "clients by connections", clientConnections.top(n));
+        appendSection(sb, "clients by bytes", clientBytes.top(n));
+        return sb.toString();
+    }
+
+    private static void appendSection(StringBuilder sb, String title, List<Map.Entry<String, Long>> entries) {
+        sb.append("# ").append(title).append('\n');
+        for (Map.Entry<String, Long> entry : entries) {
+            sb.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        sb.append('\n');
+    }
+}
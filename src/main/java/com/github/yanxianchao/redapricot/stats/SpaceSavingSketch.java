@@ -0,0 +1,129 @@
+package com.github.yanxianchao.redapricot.stats;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Space-Saving近似Top-N计数器
+ * 固定容量，计数器满时替换最小计数项，新项继承被替换项的计数作为误差上界；
+ * 计数项按计数组成最小堆，增加计数和替换最小项都是O(log k)；非线程安全
+ */
+public class SpaceSavingSketch {
+
+    private final int capacity;
+    private final Map<String, Counter> counters;
+    private final Counter[] heap;
+    private int size;
+
+    static final class Counter {
+        String key;
+        long count;
+        // 在堆数组中的位置
+        int index;
+
+        Counter(String key, long count) {
+            this.key = key;
+            this.count = count;
+        }
+    }
+
+    public SpaceSavingSketch(int capacity) {
+        this.capacity = capacity;
+        this.counters = new HashMap<>(capacity * 2);
+        this.heap = new Counter[capacity];
+    }
+
+    public void add(String key, long delta) {
+        Counter counter = counters.get(key);
+        if (counter != null) {
+            counter.count += delta;
+            siftDown(counter.index);
+            return;
+        }
+        if (size < capacity) {
+            counter = new Counter(key, delta);
+            counter.index = size;
+            heap[size++] = counter;
+            counters.put(key, counter);
+            siftUp(counter.index);
+            return;
+        }
+        // 替换计数最小的项（堆顶），复用计数器对象
+        Counter min = heap[0];
+        counters.remove(min.key);
+        min.key = key;
+        min.count += delta;
+        counters.put(key, min);
+        siftDown(0);
+    }
+
+    /**
+     * 所有计数减半，丢弃归零的项，实现按窗口衰减
+     * 减半不改变计数的相对顺序，只需在移除归零项后重建堆
+     */
+    public void decay() {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            Counter counter = heap[i];
+            counter.count >>= 1;
+            if (counter.count == 0) {
+                counters.remove(counter.key);
+            } else {
+                counter.index = kept;
+                heap[kept++] = counter;
+            }
+        }
+        for (int i = kept; i < size; i++) {
+            heap[i] = null;
+        }
+        size = kept;
+        for (int i = (size >>> 1) - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    /**
+     * 把当前计数累加到目标Map
+     */
+    public void mergeInto(Map<String, Long> target) {
+        for (int i = 0; i < size; i++) {
+            target.merge(heap[i].key, heap[i].count, Long::sum);
+        }
+    }
+
+    private void siftUp(int index) {
+        Counter counter = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (heap[parent].count <= counter.count) {
+                break;
+            }
+            place(heap[parent], index);
+            index = parent;
+        }
+        place(counter, index);
+    }
+
+    private void siftDown(int index) {
+        Counter counter = heap[index];
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < size && heap[right].count < heap[child].count) {
+                child = right;
+            }
+            if (counter.count <= heap[child].count) {
+                break;
+            }
+            place(heap[child], index);
+            index = child;
+        }
+        place(counter, index);
+    }
+
+    private void place(Counter counter, int index) {
+        heap[index] = counter;
+        counter.index = index;
+    }
+}
@@ -0,0 +1,88 @@
+package com.github.yanxianchao.redapricot.stats;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.concurrent.Future;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按事件循环分段的Top-N统计
+ * 每个事件循环独占一个分段，写入时不加锁；衰减和查询以任务形式提交到各分段所属的事件循环执行，
+ * 因此分段始终只在自己的事件循环线程上访问
+ */
+public class StripedTopK {
+
+    // 查询时等待单个事件循环的最长时间，超时的分段本次不计入
+    private static final long QUERY_TIMEOUT_MILLIS = 1000;
+
+    private final int capacity;
+    private final ConcurrentHashMap<EventExecutor, SpaceSavingSketch> stripes = new ConcurrentHashMap<>();
+    private final FastThreadLocal<SpaceSavingSketch> localStripe = new FastThreadLocal<>();
+
+    /**
+     * @param capacity 每个分段保留的计数项数量
+     */
+    public StripedTopK(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * 在事件循环上记录，不在该事件循环线程上调用时转为提交任务
+     */
+    public void add(EventExecutor loop, String key, long delta) {
+        if (!loop.inEventLoop()) {
+            loop.execute(() -> add(loop, key, delta));
+            return;
+        }
+        SpaceSavingSketch stripe = localStripe.get();
+        if (stripe == null) {
+            stripe = stripes.computeIfAbsent(loop, l -> new SpaceSavingSketch(capacity));
+            localStripe.set(stripe);
+        }
+        stripe.add(key, delta);
+    }
+
+    /**
+     * 在各事件循环上衰减自己的分段，不等待完成
+     */
+    public void decay() {
+        stripes.forEach((loop, stripe) -> {
+            if (loop.isShuttingDown()) {
+                stripes.remove(loop);
+                return;
+            }
+            loop.execute(stripe::decay);
+        });
+    }
+
+    /**
+     * 合并所有分段并返回计数最大的n项，不能在事件循环线程上调用
+     */
+    public List<Map.Entry<String, Long>> top(int n) {
+        List<Future<Map<String, Long>>> snapshots = new ArrayList<>();
+        stripes.forEach((loop, stripe) -> {
+            if (!loop.isShuttingDown()) {
+                snapshots.add(loop.submit(() -> {
+                    Map<String, Long> snapshot = new HashMap<>();
+                    stripe.mergeInto(snapshot);
+                    return snapshot;
+                }));
+            }
+        });
+        Map<String, Long> merged = new HashMap<>();
+        for (Future<Map<String, Long>> snapshot : snapshots) {
+            if (snapshot.awaitUninterruptibly(QUERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) && snapshot.isSuccess()) {
+                snapshot.getNow().forEach((key, count) -> merged.merge(key, count, Long::sum));
+            }
+        }
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(merged.entrySet());
+        entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        return entries.size() > n ? entries.subList(0, n) : entries;
+    }
+}
@@ -0,0 +1,84 @@
+package com.github.yanxianchao.redapricot.stats;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 单个用户或客户端IP的流量账户
+ * 中继路径只累加分段计数器并读取volatile的超额标志，汇总和配额判断由后台刷新线程完成
+ */
+public final class TrafficAccount {
+
+    private final String key;
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder connections = new LongAdder();
+    // 配额（字节），小于0表示不限制
+    private final long quotaBytes;
+    private volatile boolean exceeded;
+    // 正在使用该账户的隧道数，为0且空闲一段时间后账户可被淘汰
+    private final AtomicInteger openTunnels = new AtomicInteger();
+
+    // 已持久化的累计值和最近一次有增量的时间，创建后只在刷新线程中访问
+    long totalBytes;
+    long totalConnections;
+    long lastActiveMillis;
+
+    TrafficAccount(String key, long quotaBytes, long totalBytes, long totalConnections) {
+        this.key = key;
+        this.quotaBytes = quotaBytes;
+        this.totalBytes = totalBytes;
+        this.totalConnections = totalConnections;
+        this.lastActiveMillis = System.currentTimeMillis();
+        updateExceeded();
+    }
+
+    public String key() {
+        return key;
+    }
+
+    public void addBytes(long n) {
+        bytes.add(n);
+    }
+
+    public void addConnection() {
+        connections.increment();
+    }
+
+    /**
+     * 是否已超过配额，最多滞后一个刷新周期
+     */
+    public boolean isExceeded() {
+        return exceeded;
+    }
+
+    void retain() {
+        openTunnels.incrementAndGet();
+    }
+
+    void release() {
+        openTunnels.decrementAndGet();
+    }
+
+    /**
+     * 没有隧道使用且没有未刷新的增量
+     */
+    boolean isIdle() {
+        return openTunnels.get() == 0 && bytes.sum() == 0 && connections.sum() == 0;
+    }
+
+    long drainBytes() {
+        return bytes.sumThenReset();
+    }
+
+    long drainConnections() {
+        return connections.sumThenReset();
+    }
+
+    long quotaBytes() {
+        return quotaBytes;
+    }
+
+    void updateExceeded() {
+        exceeded = quotaBytes >= 0 && totalBytes >= quotaBytes;
+    }
+}
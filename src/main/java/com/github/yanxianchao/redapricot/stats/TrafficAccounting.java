@@ -0,0 +1,366 @@
+package com.github.yanxianchao.redapricot.stats;
+
+import io.netty.util.AttributeKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按用户和客户端IP的流量计费与配额
+ * 账户在隧道建立时查找一次，中继路径只累加计数器；
+ * 后台线程按批次把增量追加到本地文件，并根据累计值更新超额标志。
+ * 追加文件的每行为：时间戳 TAB 账户 TAB 字节数增量 TAB 连接数增量，启动时重放以恢复累计值；
+ * 增量记录积累到一定数量后，用每个账户一行的累计值快照替换整个文件。
+ * 没有隧道使用且空闲的账户在刷新后淘汰，只保留累计值，再次使用时恢复
+ */
+public final class TrafficAccounting {
+    private static final Logger logger = LoggerFactory.getLogger(TrafficAccounting.class);
+
+    /**
+     * 认证处理器在客户端通道上设置的用户名
+     */
+    public static final AttributeKey<String> USER = AttributeKey.valueOf(TrafficAccounting.class, "USER");
+
+    // 计费记录文件，未配置时不启用（-Dredapricot.accounting.file=traffic.log）
+    private static final String ACCOUNTING_FILE = System.getProperty("redapricot.accounting.file");
+    private static final long FLUSH_SECONDS = Long.getLong("redapricot.accounting.flushSeconds", 5);
+    // 追加的增量记录超过该行数后写入快照并截断
+    private static final long COMPACT_RECORDS = Long.getLong("redapricot.accounting.compactRecords", 100000);
+    // 账户没有隧道使用且持续空闲超过该时间后淘汰
+    private static final long IDLE_EVICT_MILLIS =
+            TimeUnit.SECONDS.toMillis(Long.getLong("redapricot.accounting.idleEvictSeconds", 600));
+    // 配额文件，Properties格式：user.<name>、ip.<address>、default.user、default.ip，单位字节
+    private static final String QUOTA_FILE = System.getProperty("redapricot.quota.file");
+    // 超过配额时的处理方式：close关闭隧道，throttle限速（-Dredapricot.quota.action=throttle）
+    private static final boolean THROTTLE = "throttle".equals(System.getProperty("redapricot.quota.action", "close"));
+
+    private static final ConcurrentHashMap<String, TrafficAccount> accounts = new ConcurrentHashMap<>();
+    // 所有出现过的账户的累计值 {字节数, 连接数}；活跃账户的值在淘汰时更新，快照以活跃账户为准
+    private static final ConcurrentHashMap<String, long[]> totals = new ConcurrentHashMap<>();
+    private static final Properties quotas = new Properties();
+    private static final Object flushLock = new Object();
+    private static Path path;
+    private static BufferedWriter writer;
+    private static long recordsSinceCompaction;
+
+    static {
+        if (ACCOUNTING_FILE != null) {
+            loadQuotas();
+            path = Paths.get(ACCOUNTING_FILE);
+            int records = replay(path);
+            synchronized (flushLock) {
+                // 重放的记录比账户多时立即压缩，否则打开追加
+                if (records > totals.size()) {
+                    compact();
+                } else {
+                    openWriter();
+                }
+            }
+            ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "traffic-accounting-flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flushExecutor.scheduleWithFixedDelay(TrafficAccounting::flush, FLUSH_SECONDS, FLUSH_SECONDS, TimeUnit.SECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(TrafficAccounting::flush, "traffic-accounting-shutdown"));
+            logger.info("流量计费已启用: file={}, flushSeconds={}, compactRecords={}, quotaAction={}",
+                    path, FLUSH_SECONDS, COMPACT_RECORDS, THROTTLE ? "throttle" : "close");
+        }
+    }
+
+    private TrafficAccounting() {
+    }
+
+    /**
+     * 触发类初始化：加载配额、回放计费记录并启动定期刷新，在绑定端口前调用，避免第一条隧道承担回放耗时
+     */
+    public static void init() {
+        // 类初始化在静态代码块中完成
+    }
+
+    public static boolean isEnabled() {
+        return ACCOUNTING_FILE != null;
+    }
+
+    /**
+     * 超过配额时是否限速而不是关闭隧道
+     */
+    public static boolean throttleOnQuota() {
+        return THROTTLE;
+    }
+
+    /**
+     * 查找一个隧道计费的账户，每个隧道只调用一次，隧道结束时通过{@link #release}归还
+     *
+     * @param clientIp 客户端IP
+     * @param user     认证用户名，未认证时为null
+     * @return 未启用计费时返回null
+     */
+    public static TrafficAccount[] accountsFor(String clientIp, String user) {
+        if (!isEnabled()) {
+            return null;
+        }
+        TrafficAccount ipAccount = account("ip", clientIp);
+        if (user == null) {
+            return new TrafficAccount[]{ipAccount};
+        }
+        return new TrafficAccount[]{ipAccount, account("user", user)};
+    }
+
+    /**
+     * 隧道结束，不再向这些账户累加
+     */
+    public static void release(TrafficAccount[] tunnelAccounts) {
+        if (tunnelAccounts == null) {
+            return;
+        }
+        for (TrafficAccount account : tunnelAccounts) {
+            account.release();
+        }
+    }
+
+    /**
+     * 取得账户并登记一个使用者；登记和淘汰都在同一个键的compute中进行，不会交给已被淘汰的账户
+     */
+    private static TrafficAccount account(String kind, String name) {
+        return accounts.compute(kind + ":" + name, (key, account) -> {
+            if (account == null) {
+                long[] saved = totals.get(key);
+                account = saved == null
+                        ? new TrafficAccount(key, quotaFor(kind, name), 0, 0)
+                        : new TrafficAccount(key, quotaFor(kind, name), saved[0], saved[1]);
+            }
+            account.retain();
+            return account;
+        });
+    }
+
+    private static long quotaFor(String kind, String name) {
+        String value = quotas.getProperty(kind + "." + name, quotas.getProperty("default." + kind));
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("无效的配额配置: {}.{}={}", kind, name, value);
+            return -1;
+        }
+    }
+
+    /**
+     * 把各账户的增量批量追加到计费文件并更新超额标志，然后淘汰空闲账户，增量记录过多时压缩文件
+     */
+    static void flush() {
+        synchronized (flushLock) {
+            long now = System.currentTimeMillis();
+            try {
+                for (TrafficAccount account : accounts.values()) {
+                    long bytes = account.drainBytes();
+                    long connections = account.drainConnections();
+                    if (bytes == 0 && connections == 0) {
+                        continue;
+                    }
+                    account.totalBytes += bytes;
+                    account.totalConnections += connections;
+                    account.lastActiveMillis = now;
+                    account.updateExceeded();
+                    if (writer != null) {
+                        writer.write(now + "\t" + account.key() + "\t" + bytes + "\t" + connections + "\n");
+                        recordsSinceCompaction++;
+                    }
+                }
+                if (writer != null) {
+                    writer.flush();
+                }
+            } catch (IOException e) {
+                logger.error("写入计费记录失败", e);
+            }
+            evictIdle(now);
+            if (recordsSinceCompaction >= COMPACT_RECORDS) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * 淘汰没有隧道使用、没有未刷新增量且空闲超过阈值的账户，累计值留在totals中
+     */
+    private static void evictIdle(long now) {
+        int evicted = 0;
+        for (String key : accounts.keySet()) {
+            TrafficAccount removed = accounts.computeIfPresent(key, (k, account) -> {
+                if (!account.isIdle() || now - account.lastActiveMillis < IDLE_EVICT_MILLIS) {
+                    return account;
+                }
+                totals.put(k, new long[]{account.totalBytes, account.totalConnections});
+                return null;
+            });
+            if (removed == null) {
+                evicted++;
+            }
+        }
+        if (evicted > 0) {
+            logger.debug("已淘汰空闲计费账户: {} 个, 剩余: {}", evicted, accounts.size());
+        }
+    }
+
+    /**
+     * 把每个账户的累计值写成一行快照，原子替换计费文件后继续追加
+     */
+    private static void compact() {
+        if (path == null) {
+            return;
+        }
+        Map<String, long[]> snapshot = snapshot();
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        long now = System.currentTimeMillis();
+        try {
+            try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, long[]> entry : snapshot.entrySet()) {
+                    out.write(now + "\t" + entry.getKey() + "\t" + entry.getValue()[0] + "\t" + entry.getValue()[1] + "\n");
+                }
+            }
+            closeWriter();
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            recordsSinceCompaction = 0;
+            logger.info("计费文件已压缩: {} 个账户", snapshot.size());
+        } catch (IOException e) {
+            logger.error("压缩计费文件失败: {}", path, e);
+        }
+        openWriter();
+    }
+
+    /**
+     * 所有账户的累计值，活跃账户取其当前值，在flushLock下调用
+     */
+    private static Map<String, long[]> snapshot() {
+        Map<String, long[]> snapshot = new HashMap<>(totals);
+        for (TrafficAccount account : accounts.values()) {
+            snapshot.put(account.key(), new long[]{account.totalBytes, account.totalConnections});
+        }
+        return snapshot;
+    }
+
+    private static void openWriter() {
+        if (writer != null) {
+            return;
+        }
+        try {
+            writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            logger.error("无法打开计费记录文件: {}", path, e);
+        }
+    }
+
+    private static void closeWriter() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            logger.warn("关闭计费记录文件失败: {}", path, e);
+        }
+        writer = null;
+    }
+
+    /**
+     * 按累计字节数排序的账户报告，包含已淘汰的账户
+     */
+    public static String report(int n) {
+        synchronized (flushLock) {
+            List<Map.Entry<String, long[]>> sorted = new ArrayList<>(snapshot().entrySet());
+            sorted.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+            StringBuilder sb = new StringBuilder("# accounts by bytes (account bytes connections quota)\n");
+            for (int i = 0; i < Math.min(n, sorted.size()); i++) {
+                String key = sorted.get(i).getKey();
+                long[] value = sorted.get(i).getValue();
+                int separator = key.indexOf(':');
+                long quota = quotaFor(key.substring(0, separator), key.substring(separator + 1));
+                sb.append(key).append(' ').append(value[0]).append(' ').append(value[1]).append(' ').append(quota)
+                        .append(quota >= 0 && value[0] >= quota ? " EXCEEDED" : "").append('\n');
+            }
+            return sb.toString();
+        }
+    }
+
+    private static void loadQuotas() {
+        if (QUOTA_FILE == null) {
+            return;
+        }
+        try (Reader reader = Files.newBufferedReader(Paths.get(QUOTA_FILE), StandardCharsets.UTF_8)) {
+            quotas.load(reader);
+            logger.info("已加载配额配置: {} 项", quotas.size());
+        } catch (IOException e) {
+            logger.error("加载配额配置失败: {}", QUOTA_FILE, e);
+        }
+    }
+
+    /**
+     * 重放计费文件，恢复各账户的累计值；格式错误的行（例如崩溃时写了一半的最后一行）跳过
+     *
+     * @return 有效记录数
+     */
+    private static int replay(Path path) {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        int records = 0;
+        int skipped = 0;
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                int separator = fields.length == 4 ? fields[1].indexOf(':') : -1;
+                long bytes;
+                long connections;
+                try {
+                    if (separator <= 0) {
+                        throw new NumberFormatException("malformed record");
+                    }
+                    bytes = Long.parseLong(fields[2]);
+                    connections = Long.parseLong(fields[3]);
+                } catch (NumberFormatException e) {
+                    if (skipped++ < 10) {
+                        logger.warn("跳过无效的计费记录: {} 第{}行: {}", path, lineNumber, line);
+                    }
+                    continue;
+                }
+                long[] total = totals.computeIfAbsent(fields[1], k -> new long[2]);
+                total[0] += bytes;
+                total[1] += connections;
+                records++;
+            }
+        } catch (IOException e) {
+            logger.error("重放计费记录失败: {}", path, e);
+        }
+        logger.info("已重放计费记录: {} 条, 跳过: {} 条, 账户数: {}", records, skipped, totals.size());
+        return records;
+    }
+}
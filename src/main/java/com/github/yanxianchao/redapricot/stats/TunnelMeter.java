@@ -0,0 +1,148 @@
+package com.github.yanxianchao.redapricot.stats;
+
+import com.github.yanxianchao.redapricot.startup.StartupWarmer;
+import io.netty.channel.Channel;
+import io.netty.util.concurrent.EventExecutor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 隧道一个方向的流量计量，SOCKS5/透明代理、HTTP/2 CONNECT、多路复用流和HTTP代理的中继路径共用
+ * 读取路径只累加本批字节数，批次结束时一起提交到热点统计和计费账户；
+ * 超过配额且配置为限速时暂停读取一段时间，暂停期间{@link #isThrottled()}为true，背压恢复读取前需要检查
+ */
+public final class TunnelMeter {
+
+    // 超过配额限速时每批读取后暂停的时间
+    public static final long THROTTLE_PAUSE_MILLIS = 1000;
+
+    private final String clientKey;
+    private final String destinationKey;
+    // 计费账户，未启用计费时为null
+    private final TrafficAccount[] accounts;
+    private long pendingBytes;
+    private volatile boolean throttled;
+    private volatile boolean closed;
+
+    private TunnelMeter(String clientKey, String destinationKey, TrafficAccount[] accounts) {
+        this.clientKey = clientKey;
+        this.destinationKey = destinationKey;
+        this.accounts = accounts;
+    }
+
+    /**
+     * 为隧道的一个方向创建计量，隧道结束时调用{@link #close()}
+     *
+     * @param clientKey       客户端键，为null时不计量
+     * @param user            认证用户名，可为null
+     * @param countConnection 是否为隧道计一次连接，一个隧道只在一个方向上计
+     * @return 不计量时返回null
+     */
+    public static TunnelMeter open(String clientKey, String destinationKey, String user, boolean countConnection) {
+        if (clientKey == null) {
+            return null;
+        }
+        TrafficAccount[] accounts = TrafficAccounting.accountsFor(clientKey, user);
+        if (accounts != null && countConnection) {
+            for (TrafficAccount account : accounts) {
+                account.addConnection();
+            }
+        }
+        return new TunnelMeter(clientKey, destinationKey, accounts);
+    }
+
+    /**
+     * 为通道隧道的一个方向创建计量，启动预热的回环隧道不计量
+     *
+     * @param clientChannel 隧道的客户端通道
+     */
+    public static TunnelMeter open(Channel clientChannel, String clientKey, String destinationKey, String user,
+                                   boolean countConnection) {
+        if (StartupWarmer.isWarmup(clientChannel)) {
+            return null;
+        }
+        return open(clientKey, destinationKey, user, countConnection);
+    }
+
+    /**
+     * 累加本批读取的字节数，只在一个线程上调用
+     */
+    public void add(long bytes) {
+        pendingBytes += bytes;
+    }
+
+    /**
+     * 提交本批字节数
+     *
+     * @param loop 记录热点统计的事件循环，阻塞线程上传null只计费
+     */
+    public void commit(EventExecutor loop) {
+        if (pendingBytes == 0) {
+            return;
+        }
+        if (loop != null) {
+            HeavyHitters.recordBytes(loop, clientKey, destinationKey, pendingBytes);
+        }
+        if (accounts != null && !closed) {
+            for (TrafficAccount account : accounts) {
+                account.addBytes(pendingBytes);
+            }
+        }
+        pendingBytes = 0;
+    }
+
+    /**
+     * 是否有账户超过配额，最多滞后一个刷新周期
+     */
+    public boolean isExceeded() {
+        return exceededAccount() != null;
+    }
+
+    /**
+     * 第一个超过配额的账户，没有时返回null
+     */
+    public String exceededAccount() {
+        if (accounts == null) {
+            return null;
+        }
+        for (TrafficAccount account : accounts) {
+            if (account.isExceeded()) {
+                return account.key();
+            }
+        }
+        return null;
+    }
+
+    public boolean isThrottled() {
+        return throttled;
+    }
+
+    /**
+     * 暂停读取一段时间后恢复，已在暂停中时忽略
+     *
+     * @param executor 执行恢复动作的线程
+     * @param pause    暂停读取，立即在调用线程上执行
+     * @param resume   恢复读取，暂停结束后在executor上执行
+     */
+    public void throttle(EventExecutor executor, Runnable pause, Runnable resume) {
+        if (throttled) {
+            return;
+        }
+        throttled = true;
+        pause.run();
+        executor.schedule(() -> {
+            throttled = false;
+            resume.run();
+        }, THROTTLE_PAUSE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 隧道结束，归还计费账户；之后提交的字节数只计入热点统计
+     */
+    public void close() {
+        if (!closed) {
+            closed = true;
+            TrafficAccounting.release(accounts);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.github.yanxianchao.redapricot.tls;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslSessionContext;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSessionContext;
+import java.io.File;
+import java.security.SecureRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 可热加载的服务端TLS上下文
+ * 优先使用OpenSSL/BoringSSL，启用会话缓存和会话票据，证书或私钥文件变化时自动重新加载
+ */
+public class ReloadableSslContext {
+    private static final Logger logger = LoggerFactory.getLogger(ReloadableSslContext.class);
+
+    private static final long RELOAD_CHECK_INTERVAL_SECONDS = 30;
+
+    private final SslProvider sslProvider;
+    private final File certFile;
+    private final File keyFile;
+    private final long sessionCacheSize;
+    private final long sessionTimeoutSeconds;
+    private final String[] applicationProtocols;
+    // 票据密钥在重新加载之间保持不变，证书轮换后客户端仍可恢复会话
+    private final OpenSslSessionTicketKey ticketKey;
+    private final ScheduledExecutorService reloadExecutor;
+
+    private volatile SslContext context;
+    private volatile long certModified;
+    private volatile long keyModified;
+
+    public ReloadableSslContext(File certFile, File keyFile, long sessionCacheSize, long sessionTimeoutSeconds,
+                                String... applicationProtocols) throws SSLException {
+        this(provider(), certFile, keyFile, sessionCacheSize, sessionTimeoutSeconds, applicationProtocols);
+    }
+
+    /**
+     * @param sslProvider 指定TLS实现，用于比较JDK和OpenSSL
+     */
+    public ReloadableSslContext(SslProvider sslProvider, File certFile, File keyFile, long sessionCacheSize,
+                                long sessionTimeoutSeconds, String... applicationProtocols) throws SSLException {
+        this.sslProvider = sslProvider;
+        this.certFile = certFile;
+        this.keyFile = keyFile;
+        this.sessionCacheSize = sessionCacheSize;
+        this.sessionTimeoutSeconds = sessionTimeoutSeconds;
+        this.applicationProtocols = applicationProtocols;
+        this.ticketKey = sslProvider != SslProvider.JDK ? newTicketKey() : null;
+        this.context = build();
+        this.reloadExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "tls-reload");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reloadExecutor.scheduleWithFixedDelay(this::reloadIfChanged,
+                RELOAD_CHECK_INTERVAL_SECONDS, RELOAD_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        logger.info("TLS上下文已加载 - 实现: {}, 会话缓存: {}, 会话超时: {}秒",
+                sslProvider, sessionCacheSize, sessionTimeoutSeconds);
+    }
+
+    /**
+     * 当前环境可用的TLS实现，OpenSSL/BoringSSL优先
+     */
+    public static SslProvider provider() {
+        return OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK;
+    }
+
+    /**
+     * 为新连接创建TLS处理器，始终使用最新加载的证书
+     */
+    public SslHandler newHandler(ByteBufAllocator alloc) {
+        return context.newHandler(alloc);
+    }
+
+    public SslContext context() {
+        return context;
+    }
+
+    /**
+     * 检查证书和私钥文件，发生变化时重新构建上下文
+     */
+    public void reloadIfChanged() {
+        if (certFile.lastModified() == certModified && keyFile.lastModified() == keyModified) {
+            return;
+        }
+        try {
+            context = build();
+            logger.info("证书已重新加载: {}", certFile);
+        } catch (Exception e) {
+            logger.error("重新加载证书失败，继续使用旧证书: {}", certFile, e);
+        }
+    }
+
+    public void shutdown() {
+        reloadExecutor.shutdownNow();
+    }
+
+    private SslContext build() throws SSLException {
+        long certTime = certFile.lastModified();
+        long keyTime = keyFile.lastModified();
+
+        SslContextBuilder builder = SslContextBuilder.forServer(certFile, keyFile)
+                .sslProvider(sslProvider)
+                .sessionCacheSize(sessionCacheSize)
+                .sessionTimeout(sessionTimeoutSeconds);
+        if (applicationProtocols.length > 0) {
+            builder.applicationProtocolConfig(new ApplicationProtocolConfig(
+                    ApplicationProtocolConfig.Protocol.ALPN,
+                    ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                    ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                    applicationProtocols));
+        }
+        SslContext sslContext = builder.build();
+
+        SSLSessionContext sessionContext = sslContext.sessionContext();
+        if (sessionContext instanceof OpenSslSessionContext && ticketKey != null) {
+            OpenSslSessionContext openSslSessionContext = (OpenSslSessionContext) sessionContext;
+            openSslSessionContext.setSessionCacheEnabled(true);
+            openSslSessionContext.setTicketKeys(ticketKey);
+        }
+
+        certModified = certTime;
+        keyModified = keyTime;
+        return sslContext;
+    }
+
+    private static OpenSslSessionTicketKey newTicketKey() {
+        SecureRandom random = new SecureRandom();
+        byte[] name = new byte[OpenSslSessionTicketKey.NAME_SIZE];
+        byte[] hmacKey = new byte[OpenSslSessionTicketKey.HMAC_KEY_SIZE];
+        byte[] aesKey = new byte[OpenSslSessionTicketKey.AES_KEY_SIZE];
+        random.nextBytes(name);
+        random.nextBytes(hmacKey);
+        random.nextBytes(aesKey);
+        return new OpenSslSessionTicketKey(name, hmacKey, aesKey);
+    }
+}
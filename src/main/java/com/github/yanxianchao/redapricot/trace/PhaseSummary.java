@@ -0,0 +1,110 @@
+package com.github.yanxianchao.redapricot.trace;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * 离线汇总JFR录制文件中的隧道阶段事件
+ * 按阶段输出耗时分布和关闭事件记录的隧道存活时间分布，并列出最慢的若干条记录。
+ * 用法：java -cp ... com.github.yanxianchao.redapricot.trace.PhaseSummary recording.jfr [slowest]
+ */
+public final class PhaseSummary {
+
+    /**
+     * 一个阶段的所有耗时（纳秒）和字节数
+     */
+    private static final class PhaseStats {
+        long[] durations = new long[1024];
+        int count;
+        long bytes;
+
+        void add(long duration, long eventBytes) {
+            if (count == durations.length) {
+                durations = Arrays.copyOf(durations, count * 2);
+            }
+            durations[count++] = duration;
+            bytes += eventBytes;
+        }
+
+        long percentile(double p) {
+            return durations[Math.min(count - 1, (int) (count * p))];
+        }
+    }
+
+    private record Slow(long duration, String phase, String destination, String remote, String eventLoop) {
+    }
+
+    private PhaseSummary() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: PhaseSummary <recording.jfr> [slowest]");
+            System.exit(2);
+        }
+        Path path = Paths.get(args[0]);
+        int slowestLimit = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        Map<String, PhaseStats> phases = new TreeMap<>();
+        PhaseStats lifetimes = new PhaseStats();
+        PriorityQueue<Slow> slowest = new PriorityQueue<>(Comparator.comparingLong(Slow::duration));
+        try (RecordingFile recording = new RecordingFile(path)) {
+            while (recording.hasMoreEvents()) {
+                RecordedEvent event = recording.readEvent();
+                if (!TunnelPhaseEvent.NAME.equals(event.getEventType().getName())) {
+                    continue;
+                }
+                long duration = event.getDuration().toNanos();
+                String phase = event.getString("phase");
+                phases.computeIfAbsent(phase, k -> new PhaseStats()).add(duration, event.getLong("bytes"));
+                // 旧版本录制的关闭事件没有存活时间字段
+                if (TunnelTrace.CLOSE.equals(phase) && event.hasField("lifetime")) {
+                    lifetimes.add(event.getDuration("lifetime").toNanos(), event.getLong("bytes"));
+                }
+                slowest.add(new Slow(duration, phase, event.getString("destination"),
+                        event.getString("remote"), event.getString("eventLoop")));
+                if (slowest.size() > slowestLimit) {
+                    slowest.poll();
+                }
+            }
+        }
+
+        System.out.printf("%-18s %8s %10s %10s %10s %10s %14s%n", "phase", "count", "p50(ms)", "p90(ms)", "p99(ms)", "max(ms)", "bytes");
+        for (Map.Entry<String, PhaseStats> entry : phases.entrySet()) {
+            printRow(entry.getKey(), entry.getValue());
+        }
+        if (lifetimes.count > 0) {
+            printRow("tunnel_lifetime", lifetimes);
+        }
+
+        List<Slow> sorted = new ArrayList<>(slowest);
+        sorted.sort(Comparator.comparingLong(Slow::duration).reversed());
+        System.out.printf("%nslowest %d:%n", sorted.size());
+        for (Slow slow : sorted) {
+            System.out.printf("%10.2f ms  %-18s %s  remote=%s  loop=%s%n", millis(slow.duration()), slow.phase(),
+                    slow.destination(), slow.remote(), slow.eventLoop());
+        }
+    }
+
+    private static void printRow(String name, PhaseStats stats) {
+        Arrays.sort(stats.durations, 0, stats.count);
+        System.out.printf("%-18s %8d %10.2f %10.2f %10.2f %10.2f %14d%n", name, stats.count,
+                millis(stats.percentile(0.50)), millis(stats.percentile(0.90)), millis(stats.percentile(0.99)),
+                millis(stats.durations[stats.count - 1]), stats.bytes);
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
@@ -0,0 +1,48 @@
+package com.github.yanxianchao.redapricot.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * 隧道阶段的JFR事件
+ * 默认只记录耗时超过阈值的阶段，阈值可在JFR配置中通过 redapricot.TunnelPhase#threshold 调整；
+ * 关闭阶段的耗时是从一端关闭到另一端也关闭，隧道存活时间单独记录在lifetime字段
+ */
+@Name(TunnelPhaseEvent.NAME)
+@Label("Tunnel Phase")
+@Category({"RedApricot", "Tunnel"})
+@Description("One phase of a proxied tunnel: accept, greeting, connect, dns, upstream_connect, first_byte, close")
+@Threshold("20 ms")
+@StackTrace(false)
+public class TunnelPhaseEvent extends Event {
+
+    public static final String NAME = "redapricot.TunnelPhase";
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Destination")
+    String destination;
+
+    @Label("Remote Address")
+    String remote;
+
+    @Label("Event Loop")
+    String eventLoop;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Tunnel Lifetime")
+    @Description("Time from tunnel setup until its close phase began, only set on close events")
+    @Timespan(Timespan.NANOSECONDS)
+    long lifetime;
+}
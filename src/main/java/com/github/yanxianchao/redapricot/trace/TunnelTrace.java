@@ -0,0 +1,111 @@
+package com.github.yanxianchao.redapricot.trace;
+
+import com.github.yanxianchao.redapricot.startup.StartupWarmer;
+import io.netty.channel.Channel;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Recording;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 隧道阶段追踪
+ * 事件是否启用缓存在一个volatile字段中，录制开始或结束时刷新；未启用时begin不分配事件直接返回null，
+ * 调用方只保存一个null引用；事件循环在begin时记录，DNS和关闭阶段在解析器或对端通道的监听器中结束，
+ * 结束时的线程不是隧道所在的事件循环；其余字段只在耗时超过阈值、确定要提交时才填充
+ */
+public final class TunnelTrace {
+    private static final Logger logger = LoggerFactory.getLogger(TunnelTrace.class);
+
+    public static final String ACCEPT = "accept";
+    public static final String GREETING = "greeting";
+    public static final String CONNECT = "connect";
+    public static final String DNS = "dns";
+    public static final String UPSTREAM_CONNECT = "upstream_connect";
+    public static final String FIRST_BYTE = "first_byte";
+    public static final String CLOSE = "close";
+
+    private static final EventType EVENT_TYPE = EventType.getEventType(TunnelPhaseEvent.class);
+    private static volatile boolean enabled = EVENT_TYPE.isEnabled();
+
+    static {
+        try {
+            FlightRecorder.addListener(new FlightRecorderListener() {
+                @Override
+                public void recordingStateChanged(Recording recording) {
+                    enabled = EVENT_TYPE.isEnabled();
+                }
+            });
+        } catch (RuntimeException e) {
+            logger.warn("无法监听JFR录制状态，隧道阶段追踪不可用: {}", e.getMessage());
+            enabled = false;
+        }
+    }
+
+    private TunnelTrace() {
+    }
+
+    /**
+     * 开始一个阶段，记录当前线程为该阶段的事件循环
+     *
+     * @return 事件未启用时返回null
+     */
+    public static TunnelPhaseEvent begin(String phase) {
+        if (!enabled) {
+            return null;
+        }
+        TunnelPhaseEvent event = new TunnelPhaseEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.phase = phase;
+        event.eventLoop = Thread.currentThread().getName();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * 开始客户端连接上的一个阶段，启动预热的连接不追踪
+     *
+     * @return 事件未启用或是预热连接时返回null
+     */
+    public static TunnelPhaseEvent begin(String phase, Channel channel) {
+        if (!enabled || StartupWarmer.isWarmup(channel)) {
+            return null;
+        }
+        return begin(phase);
+    }
+
+    /**
+     * 结束一个阶段，耗时超过阈值时提交事件
+     *
+     * @param event       begin返回的事件，可为null
+     * @param destination 目标地址，未知时为null
+     * @param channel     客户端或上游通道，记录其远端地址，可为null
+     * @param bytes       该阶段的字节数
+     */
+    public static void end(TunnelPhaseEvent event, String destination, Channel channel, long bytes) {
+        endClose(event, destination, channel, bytes, 0);
+    }
+
+    /**
+     * 结束关闭阶段，同时记录隧道的存活时间
+     *
+     * @param lifetimeNanos 从隧道建立到关闭阶段开始的时间
+     */
+    public static void endClose(TunnelPhaseEvent event, String destination, Channel channel, long bytes, long lifetimeNanos) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.destination = destination;
+        event.remote = channel != null ? String.valueOf(channel.remoteAddress()) : null;
+        event.bytes = bytes;
+        event.lifetime = lifetimeNanos;
+        event.commit();
+    }
+}
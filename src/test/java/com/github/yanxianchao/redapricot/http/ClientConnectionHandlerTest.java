@@ -0,0 +1,122 @@
+package com.github.yanxianchao.redapricot.http;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 响应缓存的新鲜度规则、Authorization限制和条件请求头测试
+ */
+class ClientConnectionHandlerTest {
+
+    private static final String DATE = "Sun, 06 Nov 1994 08:49:37 GMT";
+
+    @Test
+    void sMaxAgeTakesPrecedenceOverMaxAgeAndExpires() {
+        ClientConnectionHandler.Head response = response("Cache-Control: max-age=60, s-maxage=120",
+                "Date: " + DATE, "Expires: Sun, 06 Nov 1994 09:49:37 GMT");
+        assertEquals(TimeUnit.SECONDS.toMillis(120), ClientConnectionHandler.freshnessLifetime(response));
+    }
+
+    @Test
+    void maxAgeTakesPrecedenceOverExpires() {
+        ClientConnectionHandler.Head response = response("Cache-Control: max-age=60",
+                "Date: " + DATE, "Expires: Sun, 06 Nov 1994 09:49:37 GMT");
+        assertEquals(TimeUnit.SECONDS.toMillis(60), ClientConnectionHandler.freshnessLifetime(response));
+    }
+
+    @Test
+    void expiresIsRelativeToOriginDate() {
+        ClientConnectionHandler.Head response = response("Date: " + DATE, "Expires: Sun, 06 Nov 1994 09:49:37 GMT");
+        assertEquals(TimeUnit.HOURS.toMillis(1), ClientConnectionHandler.freshnessLifetime(response));
+    }
+
+    @Test
+    void unparseableExpiresIsAlreadyStale() {
+        ClientConnectionHandler.Head response = response("Date: " + DATE, "Expires: 0");
+        assertEquals(0, ClientConnectionHandler.freshnessLifetime(response));
+    }
+
+    @Test
+    void noFreshnessInformation() {
+        assertEquals(-1, ClientConnectionHandler.freshnessLifetime(response("ETag: \"v1\"")));
+        assertEquals(0, ClientConnectionHandler.freshnessLifetime(response("Cache-Control: no-cache, max-age=60")));
+    }
+
+    @Test
+    void authorizedRequestNeedsPublicOrSMaxAge() {
+        ClientConnectionHandler.Head plain = response("Cache-Control: max-age=60");
+        assertTrue(ClientConnectionHandler.expiresAt(200, plain, false) > 0);
+        assertEquals(-1, ClientConnectionHandler.expiresAt(200, plain, true));
+
+        long before = System.currentTimeMillis();
+        long expiresAt = ClientConnectionHandler.expiresAt(200, response("Cache-Control: public, max-age=60"), true);
+        assertTrue(expiresAt >= before + TimeUnit.SECONDS.toMillis(60));
+        assertTrue(ClientConnectionHandler.expiresAt(200, response("Cache-Control: s-maxage=60"), true) > 0);
+    }
+
+    @Test
+    void uncacheableResponses() {
+        assertEquals(-1, ClientConnectionHandler.expiresAt(404, response("Cache-Control: max-age=60"), false));
+        assertEquals(-1, ClientConnectionHandler.expiresAt(200, response("Cache-Control: private, max-age=60"), false));
+        assertEquals(-1, ClientConnectionHandler.expiresAt(200, response("Cache-Control: max-age=60", "Vary: Accept"), false));
+        assertEquals(-1, ClientConnectionHandler.expiresAt(200, response("Content-Type: text/plain"), false));
+    }
+
+    @Test
+    void notModifiedRefreshesFromItsOwnHeaders() {
+        HttpResponseCache.Entry stale = entry(TimeUnit.SECONDS.toMillis(300));
+        long now = 1_000_000;
+        assertEquals(now + TimeUnit.SECONDS.toMillis(30),
+                ClientConnectionHandler.refreshedExpiresAt(response("Cache-Control: max-age=30"), stale, now));
+    }
+
+    @Test
+    void notModifiedWithoutFreshnessKeepsOriginalLifetime() {
+        HttpResponseCache.Entry stale = entry(TimeUnit.SECONDS.toMillis(300));
+        long now = 1_000_000;
+        long refreshed = ClientConnectionHandler.refreshedExpiresAt(response("ETag: \"v1\""), stale, now);
+        assertEquals(now + stale.lifetime, refreshed);
+        assertTrue(stale.lifetime > TimeUnit.SECONDS.toMillis(290));
+    }
+
+    @Test
+    void malformedContentLengthIsUncacheable() {
+        assertEquals(42, ClientConnectionHandler.contentLength(response("Content-Length: 42")));
+        assertEquals(-1, ClientConnectionHandler.contentLength(response("Content-Length: abc")));
+        assertEquals(-1, ClientConnectionHandler.contentLength(response("Content-Length: -5")));
+        assertEquals(-1, ClientConnectionHandler.contentLength(response("Content-Length: 99999999999999999999")));
+        assertEquals(-1, ClientConnectionHandler.contentLength(response()));
+    }
+
+    @Test
+    void conditionalHeadersInsertedBeforeBlankLine() {
+        byte[] origin = "GET / HTTP/1.1\r\nHost: example.com\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        HttpResponseCache.Entry stale = new HttpResponseCache.Entry(null, 0, 0, "\"v1\"", DATE, 0);
+        String head = new String(ClientConnectionHandler.withConditionalHeaders(origin, stale), StandardCharsets.ISO_8859_1);
+        assertEquals("GET / HTTP/1.1\r\nHost: example.com\r\nConnection: close\r\n"
+                + "If-None-Match: \"v1\"\r\nIf-Modified-Since: " + DATE + "\r\n\r\n", head);
+    }
+
+    @Test
+    void noConditionalHeadersWithoutValidators() {
+        byte[] origin = "GET / HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        assertSame(origin, ClientConnectionHandler.withConditionalHeaders(origin, null));
+        HttpResponseCache.Entry stale = new HttpResponseCache.Entry(null, 0, 0, null, null, 0);
+        assertSame(origin, ClientConnectionHandler.withConditionalHeaders(origin, stale));
+    }
+
+    private static HttpResponseCache.Entry entry(long lifetime) {
+        return new HttpResponseCache.Entry(null, 0, 0, "\"v1\"", null, System.currentTimeMillis() + lifetime);
+    }
+
+    private static ClientConnectionHandler.Head response(String... headers) {
+        return new ClientConnectionHandler.Head("HTTP/1.1 200 OK", List.of(headers));
+    }
+}
@@ -0,0 +1,103 @@
+package com.github.yanxianchao.redapricot.http;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 响应缓存的分段淘汰测试：每个缓存项占满单个对象上限，一个分段正好放8个
+ */
+class HttpResponseCacheTest {
+
+    private static final byte[] HEAD = "HTTP/1.1 200 OK\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] BODY = new byte[HttpResponseCache.MAX_OBJECT_SIZE];
+    private static final int BODY_LENGTH = HttpResponseCache.MAX_OBJECT_SIZE - HEAD.length;
+    private static final int ENTRIES_PER_SEGMENT = 8;
+    // 两个和三个分段的磁盘预算
+    private static final long TWO_SEGMENTS = 2L * ENTRIES_PER_SEGMENT * HttpResponseCache.MAX_OBJECT_SIZE;
+    private static final long THREE_SEGMENTS = 3L * ENTRIES_PER_SEGMENT * HttpResponseCache.MAX_OBJECT_SIZE;
+
+    @TempDir
+    File directory;
+
+    @Test
+    void ringEvictionReleasesOldestSegmentOnce() throws IOException {
+        HttpResponseCache cache = new HttpResponseCache(directory, TWO_SEGMENTS, 1000);
+        HttpResponseCache.Entry first = put(cache, "k0");
+        HttpResponseCache.Segment oldest = first.segment;
+        for (int i = 1; i < 2 * ENTRIES_PER_SEGMENT; i++) {
+            put(cache, "k" + i);
+        }
+        assertEquals(1, oldest.refCnt.get());
+
+        // 第三个分段超出预算，最旧的分段连同其中的缓存项一起淘汰
+        HttpResponseCache.Entry next = put(cache, "k" + 2 * ENTRIES_PER_SEGMENT);
+        assertNotSame(oldest, next.segment);
+        assertEquals(0, oldest.refCnt.get());
+        assertFalse(oldest.file.exists());
+        assertNull(cache.get("k0"));
+        assertFalse(cache.isLive(first));
+        assertFalse(cache.serve(first, Channels.newChannel(new ByteArrayOutputStream())));
+        assertSame(next, cache.get("k" + 2 * ENTRIES_PER_SEGMENT));
+
+        // 继续写入淘汰下一个分段，已淘汰的分段不会被再次释放
+        for (int i = 1; i <= ENTRIES_PER_SEGMENT; i++) {
+            put(cache, "k" + (2 * ENTRIES_PER_SEGMENT + i));
+        }
+        assertEquals(0, oldest.refCnt.get());
+    }
+
+    @Test
+    void fullyOverwrittenSegmentLeavesRingOnce() throws IOException {
+        HttpResponseCache cache = new HttpResponseCache(directory, THREE_SEGMENTS, 1000);
+        HttpResponseCache.Segment oldest = put(cache, "k0").segment;
+        for (int i = 1; i < ENTRIES_PER_SEGMENT; i++) {
+            put(cache, "k" + i);
+        }
+        HttpResponseCache.Segment second = put(cache, "k" + ENTRIES_PER_SEGMENT).segment;
+
+        // 覆盖第一个分段中的全部缓存项（最后一个写入第三个分段），分段没有存活数据后释放并离开环
+        for (int i = 0; i < ENTRIES_PER_SEGMENT; i++) {
+            put(cache, "k" + i);
+        }
+        assertEquals(0, oldest.refCnt.get());
+        assertFalse(oldest.file.exists());
+
+        // 写满第三个分段后新建分段：环中只有两个分段，不淘汰，也不会再次释放最旧的分段
+        for (int i = 1; i < ENTRIES_PER_SEGMENT; i++) {
+            put(cache, "n" + i);
+        }
+        HttpResponseCache.Entry next = put(cache, "n" + ENTRIES_PER_SEGMENT);
+        assertNotSame(second, next.segment);
+        assertEquals(0, oldest.refCnt.get());
+        assertEquals(1, second.refCnt.get());
+        assertTrue(cache.isLive(cache.get("k" + ENTRIES_PER_SEGMENT)));
+    }
+
+    @Test
+    void removeOnlyDropsMatchingEntry() throws IOException {
+        HttpResponseCache cache = new HttpResponseCache(directory, TWO_SEGMENTS, 1000);
+        HttpResponseCache.Entry old = put(cache, "k");
+        HttpResponseCache.Entry current = put(cache, "k");
+        cache.remove("k", old);
+        assertSame(current, cache.get("k"));
+        cache.remove("k", current);
+        assertNull(cache.get("k"));
+    }
+
+    private static HttpResponseCache.Entry put(HttpResponseCache cache, String key) throws IOException {
+        return cache.put(key, HEAD, BODY, BODY_LENGTH, null, null, System.currentTimeMillis() + 60_000);
+    }
+}
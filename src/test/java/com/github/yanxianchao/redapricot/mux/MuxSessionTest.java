@@ -0,0 +1,83 @@
+package com.github.yanxianchao.redapricot.mux;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MuxSessionTest {
+
+    @Test
+    void clientSessionRejectsOpen() {
+        EmbeddedChannel channel = new EmbeddedChannel(new MuxSession(null));
+        ByteBuf open = MuxFrame.header(channel.alloc(), MuxFrame.OPEN, 2, 4)
+                .writeByte(1).writeByte('h').writeShort(80);
+        channel.writeInbound(open);
+
+        List<int[]> frames = readFrames(channel);
+        assertEquals(1, frames.size());
+        assertEquals(MuxFrame.OPEN_ACK, frames.get(0)[0]);
+        assertEquals(2, frames.get(0)[1]);
+        // 失败状态
+        assertEquals(1, frames.get(0)[3]);
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    void closeStaysBehindQueuedDataUnderBackpressure() {
+        MuxSession session = new MuxSession(null);
+        EmbeddedChannel channel = new EmbeddedChannel(session);
+        Future<MuxStream> opened = session.openStream("example.com", 443);
+        readFrames(channel);
+        channel.writeInbound(MuxFrame.header(channel.alloc(), MuxFrame.OPEN_ACK, 1, 1).writeByte(0));
+        assertTrue(opened.isSuccess());
+        MuxStream stream = opened.getNow();
+
+        // 会话通道不可写时写入超过小流阈值的数据并关闭流
+        channel.unsafe().outboundBuffer().setUserDefinedWritability(1, false);
+        int size = (int) MuxSession.SMALL_STREAM_BYTES + 2 * MuxFrame.MAX_PAYLOAD;
+        stream.write(Unpooled.wrappedBuffer(new byte[size]));
+        stream.close();
+        assertTrue(readFrames(channel).isEmpty());
+
+        channel.unsafe().outboundBuffer().setUserDefinedWritability(1, true);
+        List<int[]> frames = readFrames(channel);
+        int dataBytes = 0;
+        for (int i = 0; i < frames.size() - 1; i++) {
+            assertEquals(MuxFrame.DATA, frames.get(i)[0]);
+            dataBytes += frames.get(i)[2];
+        }
+        assertEquals(size, dataBytes);
+        assertEquals(MuxFrame.CLOSE, frames.get(frames.size() - 1)[0]);
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * 读出所有出站帧，每帧返回 {类型, 流ID, 长度, 负载首字节}
+     */
+    private static List<int[]> readFrames(EmbeddedChannel channel) {
+        List<int[]> frames = new ArrayList<>();
+        ByteBuf header;
+        while ((header = channel.readOutbound()) != null) {
+            int type = header.readByte();
+            int streamId = header.readInt();
+            int length = header.readInt();
+            header.release();
+            int first = -1;
+            if (length > 0) {
+                ByteBuf payload = channel.readOutbound();
+                first = payload.getUnsignedByte(payload.readerIndex());
+                payload.release();
+            }
+            frames.add(new int[]{type, streamId, length, first});
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,120 @@
+package com.github.yanxianchao.redapricot.socks5;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import com.github.yanxianchao.redapricot.mux.MuxClientPool;
+import com.github.yanxianchao.redapricot.mux.MuxStream;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Field;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 融合握手处理器的报文解析和缓冲区释放测试（不涉及真实的上游连接）
+ */
+class Socks5FusedHandshakeHandlerTest {
+
+    @Test
+    void greetingSplitAcrossReadsSelectsNoAuth() {
+        EmbeddedChannel channel = new EmbeddedChannel(Socks5FusedHandshakeHandler.INSTANCE);
+        channel.writeInbound(Unpooled.wrappedBuffer(new byte[]{0x05, 0x02}));
+        assertNull(channel.readOutbound());
+        channel.writeInbound(Unpooled.wrappedBuffer(new byte[]{0x02, 0x00}));
+        assertReply(channel, 0x05, 0x00);
+        assertTrue(channel.isActive());
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    void greetingWithoutNoAuthIsRejected() {
+        EmbeddedChannel channel = new EmbeddedChannel(Socks5FusedHandshakeHandler.INSTANCE);
+        channel.writeInbound(Unpooled.wrappedBuffer(new byte[]{0x05, 0x01, 0x02}));
+        assertReply(channel, 0x05, 0xFF);
+        assertFalse(channel.isActive());
+    }
+
+    @Test
+    void wrongVersionClosesWithoutReply() {
+        EmbeddedChannel channel = new EmbeddedChannel(Socks5FusedHandshakeHandler.INSTANCE);
+        channel.writeInbound(Unpooled.wrappedBuffer(new byte[]{0x04, 0x01, 0x00}));
+        assertNull(channel.readOutbound());
+        assertFalse(channel.isActive());
+    }
+
+    @Test
+    void unsupportedAddressTypeIsRejected() {
+        EmbeddedChannel channel = new EmbeddedChannel(Socks5FusedHandshakeHandler.INSTANCE);
+        channel.writeInbound(Unpooled.wrappedBuffer(new byte[]{0x05, 0x01, 0x00, 0x05, 0x01, 0x00, 0x09, 0, 0}));
+        assertReply(channel, 0x05, 0x00);
+        assertReply(channel, 0x05, 0x08, 0x00, 0x01, 0, 0, 0, 0, 0, 0);
+        assertFalse(channel.isActive());
+    }
+
+    @Test
+    void unsupportedCommandIsRejected() {
+        EmbeddedChannel channel = new EmbeddedChannel(Socks5FusedHandshakeHandler.INSTANCE);
+        // BIND 127.0.0.1:80
+        channel.writeInbound(Unpooled.wrappedBuffer(new byte[]{0x05, 0x01, 0x00,
+                0x05, 0x02, 0x00, 0x01, 127, 0, 0, 1, 0, 80}));
+        assertReply(channel, 0x05, 0x00);
+        assertReply(channel, 0x05, 0x07, 0x00, 0x01, 0, 0, 0, 0, 0, 0);
+        assertFalse(channel.isActive());
+    }
+
+    @Test
+    void muxConnectWithoutEarlyDataReleasesRequestBuffer() throws Exception {
+        Promise<MuxStream> opened = ImmediateEventExecutor.INSTANCE.newPromise();
+        MuxClientPool pool = new MuxClientPool("127.0.0.1", 1, 1) {
+            @Override
+            public Future<MuxStream> openStream(String host, int port) {
+                return opened;
+            }
+        };
+        Field field = Socks5ServerHandler.class.getDeclaredField("muxClientPool");
+        field.setAccessible(true);
+        field.set(null, pool);
+        try {
+            EmbeddedChannel channel = new EmbeddedChannel(Socks5FusedHandshakeHandler.INSTANCE);
+            // 问候和CONNECT 127.0.0.1:80在同一次读取中到达，没有早期数据
+            ByteBuf request = Unpooled.buffer().writeBytes(new byte[]{0x05, 0x01, 0x00,
+                    0x05, 0x01, 0x00, 0x01, 127, 0, 0, 1, 0, 80});
+            channel.writeInbound(request);
+            assertReply(channel, 0x05, 0x00);
+            assertEquals(1, request.refCnt());
+
+            opened.setFailure(new IllegalStateException("mux unavailable"));
+            assertReply(channel, 0x05, 0x01, 0x00, 0x01, 0, 0, 0, 0, 0, 0);
+            assertFalse(channel.isActive());
+            // 处理器移除在事件循环的后续任务中执行
+            channel.runPendingTasks();
+            assertEquals(0, request.refCnt());
+            channel.finishAndReleaseAll();
+        } finally {
+            field.set(null, null);
+            pool.shutdown();
+        }
+    }
+
+    private static void assertReply(EmbeddedChannel channel, int... expected) {
+        ByteBuf reply = channel.readOutbound();
+        byte[] bytes = new byte[expected.length];
+        for (int i = 0; i < expected.length; i++) {
+            bytes[i] = (byte) expected[i];
+        }
+        try {
+            assertArrayEquals(bytes, ByteBufUtil.getBytes(reply));
+        } finally {
+            reply.release();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.github.yanxianchao.redapricot.stats;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SpaceSavingSketchTest {
+
+    @Test
+    void heavyKeysSurviveManyRareKeys() {
+        SpaceSavingSketch sketch = new SpaceSavingSketch(16);
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            if (i % 10 == 0) {
+                sketch.add("heavy-a", 1);
+            } else if (i % 10 == 1) {
+                sketch.add("heavy-b", 1);
+            } else {
+                sketch.add("rare-" + random.nextInt(50_000), 1);
+            }
+        }
+        Map<String, Long> counts = snapshot(sketch);
+        assertEquals(16, counts.size());
+        // Space-Saving只会高估，真实计数为10000
+        assertTrue(counts.get("heavy-a") >= 10_000);
+        assertTrue(counts.get("heavy-b") >= 10_000);
+    }
+
+    @Test
+    void replacementInheritsMinimumCount() {
+        SpaceSavingSketch sketch = new SpaceSavingSketch(2);
+        sketch.add("a", 5);
+        sketch.add("b", 3);
+        sketch.add("c", 1);
+        Map<String, Long> counts = snapshot(sketch);
+        assertEquals(5L, counts.get("a"));
+        assertEquals(4L, counts.get("c"));
+        assertFalse(counts.containsKey("b"));
+    }
+
+    @Test
+    void decayHalvesAndDropsZeroCounts() {
+        SpaceSavingSketch sketch = new SpaceSavingSketch(4);
+        sketch.add("a", 8);
+        sketch.add("b", 1);
+        sketch.add("c", 3);
+        sketch.decay();
+        Map<String, Long> counts = snapshot(sketch);
+        assertEquals(Map.of("a", 4L, "c", 1L), counts);
+
+        // 衰减后堆仍然有效：新项替换当前最小的c
+        sketch.add("d", 2);
+        sketch.add("e", 3);
+        sketch.add("f", 1);
+        counts = snapshot(sketch);
+        assertEquals(Map.of("a", 4L, "d", 2L, "e", 3L, "f", 2L), counts);
+    }
+
+    private static Map<String, Long> snapshot(SpaceSavingSketch sketch) {
+        Map<String, Long> counts = new HashMap<>();
+        sketch.mergeInto(counts);
+        return counts;
+    }
+}